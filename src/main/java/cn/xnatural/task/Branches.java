@@ -0,0 +1,215 @@
+package cn.xnatural.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 并行步骤的分支执行控制
+ * 1. 成功分支数达到 {@link #need}: 取消(中断)其余分支, 等待方立即结束
+ * 2. 失败分支数使 {@link #need} 无法达到: 取消其余分支, 等待方立即失败
+ * 3. 等待方被中断(任务被取消): 取消所有分支
+ * @param <I> 入参类型
+ * @param <R> 分支结果类型
+ */
+class Branches<I, R> {
+    // 所属并行步骤
+    private final Step parent;
+    // 分支步骤
+    private final List<Step<I, R>> branches;
+    // 需要多少个分支成功
+    private final int need;
+    // 正在执行各分支的线程
+    private final Thread[] runners;
+    // 被本对象中断过的分支. 用于执行结束后清除中断标志
+    private final boolean[] interrupted;
+    // 各分支的提交时间(纳秒)
+    private final long[] launchedAt;
+    // 各分支的执行结果. 和分支一一对应
+    private final Object[] results;
+    // 成功分支的结果. 按完成先后顺序
+    private final List<R> completed;
+    // 失败了多少个分支
+    private int failures;
+    // 第一个失败分支的异常
+    private Throwable error;
+    // 是否已结束(成功 或 失败/取消)
+    private boolean done;
+    // 原始分支(第一个)的耗时记录
+    private LatencyRecorder latency;
+    // 原始分支的耗时是否已记录(或不需要记录)
+    private boolean recorded;
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+
+    /**
+     * @param parent 所属并行步骤
+     * @param need 需要多少个分支成功
+     * @param fns 分支函数
+     */
+    Branches(Step parent, int need, BiFunction<I, Step, R>[] fns) {
+        if (need > fns.length) throw new IllegalArgumentException("Param need must <= " + fns.length);
+        this.parent = parent;
+        this.need = need;
+        this.branches = new ArrayList<>(fns.length);
+        for (BiFunction<I, Step, R> fn : fns) branches.add(new Step<>(parent, fn));
+        this.runners = new Thread[fns.length];
+        this.interrupted = new boolean[fns.length];
+        this.launchedAt = new long[fns.length];
+        this.results = new Object[fns.length];
+        this.completed = new ArrayList<>(Math.max(need, 0));
+        if (need < 1) { done = true; latch.countDown(); }
+    }
+    Branches(Step parent, BiFunction<I, Step, R>[] fns) { this(parent, fns.length, fns); }
+
+
+    /**
+     * 记录原始分支(第一个)的耗时: 从提交到成功结束
+     * 先被其它分支(对冲)完成而取消时, 记录到取消时的耗时(实际耗时的下限), 避免只记录胜出的快分支使阈值越来越低
+     */
+    Branches<I, R> latency(LatencyRecorder latency) { this.latency = latency; return this; }
+
+
+    /**
+     * 提交所有分支执行
+     * @param input 入参
+     */
+    Branches<I, R> launch(I input) {
+        for (int i = 0; i < branches.size(); i++) launch(i, input);
+        return this;
+    }
+
+
+    /**
+     * 提交某个分支执行
+     * @param idx 分支下标
+     * @param input 入参
+     */
+    Branches<I, R> launch(int idx, I input) {
+        launchedAt[idx] = System.nanoTime();
+        parent.task().exec(() -> run(idx, input));
+        return this;
+    }
+
+
+    /**
+     * 执行某个分支
+     */
+    private void run(int idx, I input) {
+        synchronized (this) {
+            if (done) return; // 已结束, 不再执行
+            runners[idx] = Thread.currentThread();
+        }
+        final Tracer tr = parent.task().tracer();
+        if (tr != null) tr.begin(Tracer.BRANCH, parent.task().key, parent.num);
+        try {
+            R r = branches.get(idx).apply(input);
+            boolean enough;
+            long elapsed = -1;
+            synchronized (this) {
+                if (done) return;
+                results[idx] = r;
+                completed.add(r);
+                enough = completed.size() >= need;
+                if (idx == 0 && !recorded) { recorded = true; elapsed = System.nanoTime() - launchedAt[0]; }
+            }
+            if (latency != null && elapsed >= 0) latency.record(elapsed);
+            if (enough) cancel();
+        } catch (Throwable ex) {
+            if (idx == 0) { synchronized (this) { recorded = true; } } // 失败的耗时不记录
+            fail(ex);
+        } finally {
+            if (tr != null) tr.end(Tracer.BRANCH, parent.task().key, parent.num);
+            synchronized (this) {
+                runners[idx] = null;
+                // 清除取消时设置的中断标志, 避免影响线程池中的下一个任务
+                if (interrupted[idx]) { interrupted[idx] = false; Thread.interrupted(); }
+            }
+        }
+    }
+
+
+    /**
+     * 分支失败. 只记录第一个异常
+     */
+    private void fail(Throwable ex) {
+        synchronized (this) {
+            if (done) return;
+            if (error == null) error = ex;
+            if (++failures <= branches.size() - need) return; // 剩余分支仍可能满足
+        }
+        cancel();
+    }
+
+
+    /**
+     * 结束: 取消所有未完成的分支
+     */
+    void cancel() {
+        long elapsed = -1;
+        synchronized (this) {
+            done = true;
+            // 原始分支未结束: 记录到现在的耗时(下限)
+            if (!recorded && launchedAt[0] != 0) { recorded = true; elapsed = System.nanoTime() - launchedAt[0]; }
+            for (int i = 0; i < runners.length; i++) {
+                Thread t = runners[i];
+                if (t == null) continue;
+                branches.get(i).cancel();
+                if (t != Thread.currentThread()) {
+                    interrupted[i] = true; t.interrupt();
+                }
+            }
+        }
+        if (latency != null && elapsed >= 0) latency.record(elapsed);
+        latch.countDown();
+    }
+
+
+    /**
+     * 限时等待结束
+     * @param timeout 超时时间
+     * @param unit 时间单位
+     * @return true: 已结束
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        try { return latch.await(timeout, unit); } catch (InterruptedException e) {
+            cancel();
+            throw new CancellationException(parent.task().logPrefix() + "step" + parent.num + " interrupted");
+        }
+    }
+
+
+    /**
+     * 等待结束
+     * 成功分支数不足时抛出第一个失败分支的异常
+     */
+    Branches<I, R> await() {
+        try { latch.await(); } catch (InterruptedException e) {
+            cancel();
+            throw new CancellationException(parent.task().logPrefix() + "step" + parent.num + " interrupted");
+        }
+        synchronized (this) {
+            if (completed.size() >= need) return this;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            if (error != null) throw new RuntimeException(error);
+            throw new CancellationException(parent.task().logPrefix() + "step" + parent.num + " cancelled");
+        }
+    }
+
+
+    /**
+     * 各分支的执行结果. 和分支一一对应, 未完成的分支为null
+     */
+    synchronized List<R> results() { return new ArrayList<>((List<R>) Arrays.asList(results)); }
+
+
+    /**
+     * 成功分支的结果. 按完成先后顺序
+     */
+    synchronized List<R> completed() { return new ArrayList<>(completed); }
+}
@@ -0,0 +1,224 @@
+package cn.xnatural.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 熔断器: 保护调用同一个下游依赖的步骤(一般多个任务/步骤共用一个实例)
+ * 1. 关闭: 记录最近 {@link #window} 次调用的结果. 失败率 或 慢调用率 超过阈值则打开
+ * 2. 打开: 拒绝调用 {@link #openNanos}, 之后进入半开
+ * 3. 半开: 只放行一个探测调用. 成功则关闭, 失败(或慢)则重新打开
+ *
+ * 用法: {@link TaskWrapper#breaker(CircuitBreaker, boolean)}
+ */
+public class CircuitBreaker {
+    protected static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final   byte   OK = 0, FAIL = 1, SLOW = 2;
+
+    public enum State {Closed, Open, HalfOpen}
+
+    protected final  String  name;
+    /**
+     * 统计最近多少次调用
+     */
+    protected final  int     window;
+    /**
+     * 失败率阈值 (0, 1]
+     */
+    protected final  double  failureRate;
+    /**
+     * 打开时长(纳秒)
+     */
+    protected final  long    openNanos;
+    /**
+     * 慢调用阈值(纳秒). 0: 不统计慢调用
+     */
+    protected        long    slowNanos;
+    /**
+     * 慢调用率阈值 (0, 1]
+     */
+    protected        double  slowRate = 1;
+    /**
+     * 最少多少次调用才计算比率
+     */
+    protected        int     minCalls;
+    // 最近调用结果. 环形覆盖
+    private final    byte[]  outcomes;
+    private          int     idx, calls, failures, slows;
+    private volatile State   state    = State.Closed;
+    // 打开时间(纳秒)
+    private volatile long    openedAt;
+    // 半开探测开始时间(纳秒)
+    private volatile long    probeAt;
+
+
+    /**
+     * @param name 名称(下游依赖)
+     * @param window 统计最近多少次调用
+     * @param failureRate 失败率阈值 (0, 1]
+     * @param openMs 打开时长(毫秒)
+     */
+    public CircuitBreaker(String name, int window, double failureRate, long openMs) {
+        if (window < 1) throw new IllegalArgumentException("Param window must > 0");
+        if (failureRate <= 0 || failureRate > 1) throw new IllegalArgumentException("Param failureRate must in (0, 1]");
+        if (openMs < 1) throw new IllegalArgumentException("Param openMs must > 0");
+        this.name = name == null ? "CircuitBreaker[" + Integer.toHexString(hashCode()) + "]" : name;
+        this.window = window; this.failureRate = failureRate;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        this.outcomes = new byte[window];
+        this.minCalls = Math.min(window, 10);
+    }
+    public CircuitBreaker(String name) { this(name, 50, 0.5, 30 * 1000); }
+
+
+    /**
+     * 请求调用
+     * @return false: 已打开(或半开探测中), 拒绝调用
+     */
+    public boolean tryAcquire() {
+        if (state == State.Closed) return true;
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (state == State.Closed) return true;
+            if (state == State.Open) {
+                if (now - openedAt < openNanos) return false;
+                state = State.HalfOpen; probeAt = now;
+                log.info(name + " -> half-open");
+                return true;
+            }
+            // 半开: 探测中. 探测超时未返回结果则允许新的探测
+            if (now - probeAt < openNanos) return false;
+            probeAt = now;
+            return true;
+        }
+    }
+
+
+    /**
+     * 调用成功
+     * @param nanos 耗时(纳秒)
+     */
+    public void onSuccess(long nanos) {
+        final boolean slow = slowNanos > 0 && nanos > slowNanos;
+        synchronized (this) {
+            if (state == State.HalfOpen) {
+                if (slow) open("slow probe"); else close();
+            } else if (state == State.Closed) record(slow ? SLOW : OK);
+        }
+    }
+
+
+    /**
+     * 调用失败
+     * @param nanos 耗时(纳秒)
+     */
+    public void onFailure(long nanos) {
+        synchronized (this) {
+            if (state == State.HalfOpen) open("probe failed");
+            else if (state == State.Closed) record(FAIL);
+        }
+    }
+
+
+    private void record(byte outcome) {
+        if (calls == window) { // 覆盖最早的
+            if (outcomes[idx] == FAIL) failures--;
+            else if (outcomes[idx] == SLOW) slows--;
+        } else calls++;
+        outcomes[idx] = outcome;
+        if (outcome == FAIL) failures++;
+        else if (outcome == SLOW) slows++;
+        idx = (idx + 1) % window;
+        if (calls < minCalls) return;
+        if (failures >= failureRate * calls) open("failure rate " + failures + "/" + calls);
+        else if (slowNanos > 0 && slows >= slowRate * calls) open("slow rate " + slows + "/" + calls);
+    }
+
+
+    private void open(String reason) {
+        state = State.Open; openedAt = System.nanoTime();
+        reset();
+        log.warn(name + " -> open: " + reason + ". retry after " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+    }
+
+
+    private void close() {
+        state = State.Closed;
+        reset();
+        log.info(name + " -> closed");
+    }
+
+
+    private void reset() { idx = 0; calls = 0; failures = 0; slows = 0; }
+
+
+    /**
+     * 是否拒绝调用: 打开中 或 半开探测中
+     */
+    public boolean isOpen() {
+        State s = state;
+        if (s == State.Open) return System.nanoTime() - openedAt < openNanos;
+        return s == State.HalfOpen && System.nanoTime() - probeAt < openNanos;
+    }
+
+
+    /**
+     * 多久后可以再请求调用(毫秒). 0: 现在可以
+     */
+    public long retryAfter() {
+        State s = state;
+        long elapsed;
+        if (s == State.Open) elapsed = System.nanoTime() - openedAt;
+        else if (s == State.HalfOpen) elapsed = System.nanoTime() - probeAt;
+        else return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - elapsed));
+    }
+
+
+    public State getState() { return state; }
+
+
+    public String getName() { return name; }
+
+
+    /**
+     * 设置慢调用阈值: 最近调用中慢调用比率超过 rate 也打开
+     * @param slowMs 耗时超过多少毫秒算慢调用
+     * @param rate 慢调用率阈值 (0, 1]
+     */
+    public CircuitBreaker setSlowCall(long slowMs, double rate) {
+        if (slowMs < 1) throw new IllegalArgumentException("Param slowMs must > 0");
+        if (rate <= 0 || rate > 1) throw new IllegalArgumentException("Param rate must in (0, 1]");
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMs);
+        this.slowRate = rate;
+        return this;
+    }
+
+
+    /**
+     * 设置最少多少次调用才计算比率. 默认 min(window, 10)
+     */
+    public CircuitBreaker setMinCalls(int minCalls) {
+        if (minCalls < 1 || minCalls > window) throw new IllegalArgumentException("Param minCalls must in [1, " + window + "]");
+        this.minCalls = minCalls;
+        return this;
+    }
+
+
+    @Override
+    public String toString() {
+        return name + "[state: " + state + ", calls: " + calls + ", failures: " + failures + ", slows: " + slows + "]";
+    }
+
+
+    /**
+     * 熔断器打开, 拒绝执行
+     */
+    public static class OpenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String msg) { super(msg); }
+    }
+}
@@ -0,0 +1,360 @@
+package cn.xnatural.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 多进程共享的等待执行对列: 同一台机器上多个JVM的 {@link TaskContext} 从同一个目录领取任务
+ *
+ * 目录结构:
+ *  ready/  等待执行的任务. 一个任务一个文件, 内容为 {@link #encoder} 序列化的任务描述
+ *  leased/ 已被某个进程领取的任务. 文件名: 进程标识~原文件名, 修改时间即租约时间
+ *  tmp/    写入中的文件. 写完后原子移动到 ready/
+ *
+ * 领取: 原子重命名 ready/x -> leased/owner~x, 只有一个进程能成功
+ * 租约: 持有进程每 leaseMs/3 刷新租约文件的修改时间, 任务结束 {@link #ack} 时删除, 停止时被取消 {@link #release} 移回 ready/
+ * 重新投递: 租约超过 {@link #leaseMs} 未刷新(持有进程已退出), 由其它进程移回 ready/
+ * 其它进程添加/结束的任务: 每 {@link #triggerMs} 检查一次, 即最多延迟这么久才被当前容器发现(继续执行或结束)
+ *
+ * 注意: 不保证先进先出; 任务对象不能直接跨进程, 需提供编码/解码函数
+ * @param <T> Task 类型
+ */
+public class FileTaskQueue<T extends TaskWrapper> implements TaskQueue<T> {
+    protected static final Logger             log     = LoggerFactory.getLogger(FileTaskQueue.class);
+    protected static final String             SEP     = "~";
+    protected static final String             SUFFIX  = ".task";
+    protected final        Path               readyDir;
+    protected final        Path               leasedDir;
+    protected final        Path               tmpDir;
+    /**
+     * 任务 -> 文件内容
+     */
+    protected final        Function<T, String> encoder;
+    /**
+     * 文件内容 -> 任务
+     */
+    protected final        Function<String, T> decoder;
+    /**
+     * 租约时长(毫秒)
+     */
+    protected final        long               leaseMs;
+    /**
+     * 当前进程标识
+     */
+    protected final        String             owner;
+    /**
+     * 一次最多领取多少个任务
+     */
+    protected              int                batch   = 16;
+    /**
+     * 已领取还未取出执行的任务
+     */
+    protected final        Queue<T>           claimed = new ConcurrentLinkedQueue<>();
+    /**
+     * 当前进程持有的租约: 任务 -> 租约文件
+     */
+    protected final        Map<T, Path>       leases  = new ConcurrentHashMap<>();
+    /**
+     * 目录非空的检查结果缓存多久(毫秒): 期间 {@link #isEmpty()} 不再扫描目录
+     */
+    protected              long               scanMs  = 50;
+    /**
+     * 多久触发一次容器(毫秒): 发现其它进程添加/结束的任务
+     */
+    protected              long               triggerMs = 200;
+    private final          AtomicLong         seq     = new AtomicLong();
+    // 上次扫描到有任务的时间
+    private volatile       long               nonEmptyAt;
+    /**
+     * 租约刷新/过期回收/触发执行
+     */
+    private                ScheduledExecutorService keeper;
+    private volatile       TaskContext<T>     ctx;
+
+
+    /**
+     * @param dir 共享目录
+     * @param encoder 任务 -> 文件内容
+     * @param decoder 文件内容 -> 任务
+     * @param leaseMs 租约时长(毫秒). 持有进程退出后, 超过此时长的任务重新投递
+     */
+    public FileTaskQueue(Path dir, Function<T, String> encoder, Function<String, T> decoder, long leaseMs) {
+        if (dir == null) throw new IllegalArgumentException("Param dir required");
+        if (encoder == null || decoder == null) throw new IllegalArgumentException("Param encoder and decoder required");
+        if (leaseMs < 100) throw new IllegalArgumentException("Param leaseMs must >= 100");
+        this.encoder = encoder; this.decoder = decoder; this.leaseMs = leaseMs;
+        this.readyDir = dir.resolve("ready"); this.leasedDir = dir.resolve("leased"); this.tmpDir = dir.resolve("tmp");
+        try {
+            Files.createDirectories(readyDir); Files.createDirectories(leasedDir); Files.createDirectories(tmpDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Create queue dir fail: " + dir, e);
+        }
+        this.owner = (ManagementFactory.getRuntimeMXBean().getName() + "_" + UUID.randomUUID().toString().substring(0, 8)).replaceAll("[^A-Za-z0-9_]", "_");
+    }
+    public FileTaskQueue(Path dir, Function<T, String> encoder, Function<String, T> decoder) { this(dir, encoder, decoder, 30 * 1000); }
+
+
+    @Override
+    public boolean offer(T task) {
+        String name = System.currentTimeMillis() + "-" + owner + "-" + seq.incrementAndGet() + SUFFIX;
+        Path tmp = tmpDir.resolve(name);
+        try {
+            Files.write(tmp, encoder.apply(task).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, readyDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(tmp); } catch (IOException ex) { /* ignore */ }
+            throw new RuntimeException("Offer task fail: " + task.getKey(), e);
+        }
+        return true;
+    }
+
+
+    @Override
+    public T poll() {
+        T task = claimed.poll();
+        if (task == null && claim(batch) > 0) task = claimed.poll();
+        return task;
+    }
+
+
+    /**
+     * 从 ready/ 领取任务
+     * @param limit 最多领取个数
+     * @return 领取个数
+     */
+    protected synchronized int claim(int limit) {
+        if (!claimed.isEmpty()) return claimed.size();
+        int cnt = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(readyDir)) {
+            for (Path p : ds) {
+                if (cnt >= limit) break;
+                Path lease = leasedDir.resolve(owner + SEP + p.getFileName());
+                try {
+                    // 先刷新修改时间(移动保留修改时间), 避免刚领取就被当作过期回收
+                    Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+                    Files.move(p, lease, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    continue; // 已被其它进程领取
+                }
+                T task;
+                try {
+                    task = decoder.apply(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+                } catch (Exception ex) {
+                    log.error("Decode task fail: " + lease + ". Dropped", ex);
+                    Files.deleteIfExists(lease); continue;
+                }
+                if (task == null) { Files.deleteIfExists(lease); continue; }
+                leases.put(task, lease);
+                claimed.offer(task); cnt++;
+            }
+        } catch (IOException e) {
+            log.error("Claim task fail: " + readyDir, e);
+        }
+        return cnt;
+    }
+
+
+    /**
+     * 只取出当前进程已领取还未执行的任务, 不再从 ready/ 领取
+     * 这些任务的租约在 {@link #close()} 时归还到 ready/, 由其它进程继续执行
+     */
+    @Override
+    public List<T> drainLocal() {
+        final List<T> ls = new LinkedList<>();
+        for (T task = claimed.poll(); task != null; task = claimed.poll()) ls.add(task);
+        return ls;
+    }
+
+
+    @Override
+    public void ack(T task) {
+        Path lease = leases.remove(task);
+        if (lease == null) return;
+        try { Files.deleteIfExists(lease); } catch (IOException e) {
+            log.error("Ack task fail: " + lease, e);
+        }
+    }
+
+
+    /**
+     * 租约移回 ready/, 由其它进程继续执行
+     */
+    @Override
+    public void release(T task) {
+        Path lease = leases.remove(task);
+        if (lease != null) giveBack(lease);
+    }
+
+
+    private void giveBack(Path lease) {
+        String name = lease.getFileName().toString();
+        try {
+            Files.move(lease, readyDir.resolve(name.substring(name.indexOf(SEP) + 1)), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.error("Release lease fail: " + lease, ex);
+        }
+    }
+
+
+    @Override
+    public boolean isShared() { return true; }
+
+
+    /**
+     * 刷新当前进程持有的租约
+     */
+    protected void renew() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path lease : leases.values()) {
+            try { Files.setLastModifiedTime(lease, now); } catch (NoSuchFileException e) {
+                log.warn("Lease lost: {}", lease); // 租约已被回收, 任务可能被重复执行
+            } catch (IOException e) {
+                log.error("Renew lease fail: " + lease, e);
+            }
+        }
+    }
+
+
+    /**
+     * 回收过期租约: 移回 ready/ 重新投递
+     * @return 回收个数
+     */
+    protected int reclaim() {
+        int cnt = 0;
+        long expire = System.currentTimeMillis() - leaseMs;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(leasedDir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.startsWith(owner + SEP)) continue;
+                try {
+                    if (Files.getLastModifiedTime(p).toMillis() > expire) continue;
+                    Files.move(p, readyDir.resolve(name.substring(name.indexOf(SEP) + 1)), StandardCopyOption.ATOMIC_MOVE);
+                    log.warn("Redeliver expired task: {}", name); cnt++;
+                } catch (NoSuchFileException e) {
+                    // 已被确认或被其它进程回收
+                }
+            }
+        } catch (IOException e) {
+            log.error("Reclaim lease fail: " + leasedDir, e);
+        }
+        return cnt;
+    }
+
+
+    /**
+     * 没有等待执行的任务, 并且没有其它进程持有的租约(可能重新投递)
+     * 扫描到有任务后 {@link #scanMs} 内直接返回false(不扫描目录), 之后由租约刷新时的触发再检查
+     */
+    @Override
+    public boolean isEmpty() {
+        if (!claimed.isEmpty()) return false;
+        final long now = System.currentTimeMillis();
+        if (now - nonEmptyAt < scanMs) return false;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(readyDir)) {
+            if (ds.iterator().hasNext()) { nonEmptyAt = now; return false; }
+        } catch (IOException e) {
+            log.error("Read queue dir fail: " + readyDir, e);
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(leasedDir, p -> !p.getFileName().toString().startsWith(owner + SEP))) {
+            if (ds.iterator().hasNext()) { nonEmptyAt = now; return false; }
+        } catch (IOException e) {
+            log.error("Read queue dir fail: " + leasedDir, e);
+        }
+        return true;
+    }
+
+
+    @Override
+    public int size() {
+        int cnt = claimed.size();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(readyDir)) {
+            for (Path ignored : ds) cnt++;
+        } catch (IOException e) {
+            log.error("Read queue dir fail: " + readyDir, e);
+        }
+        return cnt;
+    }
+
+
+    @Override
+    public synchronized void attach(TaskContext<T> ctx) {
+        this.ctx = ctx;
+        if (keeper != null) return;
+        keeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "FileTaskQueue-keeper[" + owner + "]");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(50, leaseMs / 3);
+        keeper.scheduleWithFixedDelay(() -> {
+            try {
+                renew();
+                reclaim();
+            } catch (Exception ex) {
+                log.error("FileTaskQueue keeper error", ex);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        // 其它进程添加/结束了任务, 触发当前容器继续执行或结束. 比租约刷新频繁, 不必等一个刷新周期
+        keeper.scheduleWithFixedDelay(() -> {
+            try {
+                TaskContext<T> c = this.ctx;
+                if (c != null) c.trigger();
+            } catch (Exception ex) {
+                log.error("FileTaskQueue keeper error", ex);
+            }
+        }, triggerMs, triggerMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * 关闭: 停止租约刷新, 未执行完的任务归还到 ready/
+     */
+    @Override
+    public synchronized void close() {
+        if (keeper != null) { keeper.shutdownNow(); keeper = null; }
+        ctx = null;
+        claimed.clear();
+        for (Path lease : leases.values()) giveBack(lease);
+        leases.clear();
+    }
+
+
+    /**
+     * 设置多久触发一次容器(毫秒), 发现其它进程添加/结束的任务. 默认200. {@link #attach} 前设置
+     */
+    public FileTaskQueue<T> setTriggerMs(long triggerMs) {
+        if (triggerMs < 10) throw new IllegalArgumentException("Param triggerMs >= 10");
+        this.triggerMs = triggerMs;
+        return this;
+    }
+
+
+    /**
+     * 设置一次最多领取多少个任务. 默认16
+     */
+    public FileTaskQueue<T> setBatch(int batch) {
+        if (batch < 1) throw new IllegalArgumentException("Param batch >= 1");
+        this.batch = batch;
+        return this;
+    }
+
+
+    @Override
+    public String toString() {
+        return "FileTaskQueue[owner: " + owner + ", dir: " + readyDir.getParent() + ", claimed: " + claimed.size() + ", leases: " + leases.size() + "]";
+    }
+}
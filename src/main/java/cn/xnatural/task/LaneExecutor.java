@@ -0,0 +1,260 @@
+package cn.xnatural.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分道执行器: 相同亲和键(affinity)的任务固定在同一条道(线程)上按提交顺序串行执行
+ * 1. 亲和键按hash分配到固定的道, 保持线程局部状态(连接池/解析器等)的复用
+ * 2. 同一个键同一时间只在一个线程上执行, 保证同键的执行顺序
+ * 3. 空闲的道从其它道窃取整个键的对列执行(仍然串行), 执行一批后归还原来的道
+ * 无亲和键的任务 {@link #execute(Runnable)} 轮流分配到各道
+ *
+ * 注意: 同一个键的任务不能互相等待(会死锁). 并行步骤的分支不使用亲和键
+ * 用法: new TaskContext<>(key, new LaneExecutor(8, key)), {@link TaskWrapper#affinity(Object)}
+ */
+public class LaneExecutor extends AbstractExecutorService {
+    protected static final Logger                  log    = LoggerFactory.getLogger(LaneExecutor.class);
+    // 唤醒空闲道去窃取的标记
+    private static final   KeyQueue                STEAL  = new KeyQueue(null, null);
+    /**
+     * 所有的道
+     */
+    protected final        Lane[]                  lanes;
+    /**
+     * 亲和键 -> 该键的任务对列. 对列为空并且不在执行时移除
+     */
+    protected final        Map<Object, KeyQueue>   keys   = new ConcurrentHashMap<>();
+    /**
+     * 一个键连续执行多少个任务后让出线程
+     */
+    protected              int                     batch  = 64;
+    private final          AtomicInteger           rr     = new AtomicInteger();
+    /**
+     * 已提交还未执行完的任务数
+     */
+    private final          AtomicLong              pending = new AtomicLong();
+    private volatile       boolean                 shutdown;
+    private final          CountDownLatch          terminated;
+
+
+    /**
+     * @param lanes 道数(线程数)
+     * @param name 线程名前缀
+     */
+    public LaneExecutor(int lanes, String name) {
+        if (lanes < 1) throw new IllegalArgumentException("Param lanes must >= 1");
+        this.lanes = new Lane[lanes];
+        this.terminated = new CountDownLatch(lanes);
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i, (name == null ? "lane" : name) + "-" + (i + 1));
+        }
+        for (Lane l : this.lanes) l.thread.start();
+    }
+    public LaneExecutor(int lanes) { this(lanes, null); }
+
+
+    /**
+     * 按亲和键执行
+     * @param affinity 亲和键. null: 同 {@link #execute(Runnable)}
+     * @param fn 函数
+     */
+    public void execute(Object affinity, Runnable fn) {
+        if (affinity == null) { execute(fn); return; }
+        if (fn == null) throw new NullPointerException("fn must not be null");
+        accept();
+        // 在 compute 中入队: 和移除空对列互斥, 保证同一个键只有一个对列
+        KeyQueue q = keys.compute(affinity, (k, v) -> {
+            if (v == null) v = new KeyQueue(k, lanes[spread(k.hashCode()) % lanes.length]);
+            v.tasks.offer(fn);
+            return v;
+        });
+        if (q.scheduled.compareAndSet(false, true)) q.home.offer(q);
+    }
+
+
+    /**
+     * 无亲和键: 轮流分配到各道
+     */
+    @Override
+    public void execute(Runnable fn) {
+        if (fn == null) throw new NullPointerException("fn must not be null");
+        accept();
+        Lane lane = lanes[(rr.getAndIncrement() & Integer.MAX_VALUE) % lanes.length];
+        KeyQueue q = new KeyQueue(null, lane);
+        q.tasks.offer(fn);
+        q.scheduled.set(true);
+        lane.offer(q);
+    }
+
+
+    /**
+     * 先计数再检查是否已关闭: 和道线程的退出判断(已关闭并且计数为0)配合, 不会遗留任务
+     */
+    private void accept() {
+        pending.incrementAndGet();
+        if (shutdown) {
+            pending.decrementAndGet();
+            throw new RejectedExecutionException("LaneExecutor already shutdown");
+        }
+    }
+
+
+    private static int spread(int h) { return (h ^ (h >>> 16)) & Integer.MAX_VALUE; }
+
+
+    /**
+     * 一条道: 一个线程 + 待执行的键对列
+     */
+    protected class Lane {
+        final int                       idx;
+        final Thread                    thread;
+        final BlockingDeque<KeyQueue>   ready = new LinkedBlockingDeque<>();
+        volatile boolean                busy;
+
+        Lane(int idx, String name) {
+            this.idx = idx;
+            this.thread = new Thread(this::work, name);
+        }
+
+        /**
+         * 加入待执行. 本道忙时唤醒一个空闲的道来窃取
+         */
+        void offer(KeyQueue q) {
+            ready.offerLast(q);
+            if (!busy) return;
+            for (int i = 1; i < lanes.length; i++) {
+                Lane l = lanes[(idx + i) % lanes.length];
+                if (!l.busy && l.ready.isEmpty()) { l.ready.offerLast(STEAL); break; }
+            }
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    KeyQueue q = ready.pollFirst();
+                    if (q == null || q == STEAL) q = steal();
+                    if (q == null) {
+                        if (shutdown && pending.get() == 0) break;
+                        try { q = ready.pollFirst(50, TimeUnit.MILLISECONDS); } catch (InterruptedException e) {
+                            if (shutdown) break; else continue;
+                        }
+                        if (q == null || q == STEAL) continue;
+                    }
+                    busy = true;
+                    try { run(q); } finally { busy = false; }
+                }
+            } finally {
+                terminated.countDown();
+            }
+        }
+
+        /**
+         * 从其它道的尾部窃取
+         */
+        private KeyQueue steal() {
+            for (int i = 1; i < lanes.length; i++) {
+                Lane l = lanes[(idx + i) % lanes.length];
+                KeyQueue q = l.ready.pollLast();
+                if (q == STEAL) { l.ready.offerLast(STEAL); continue; }
+                if (q != null) return q;
+            }
+            return null;
+        }
+
+        /**
+         * 执行一个键的一批任务, 未执行完的归还原来的道
+         */
+        private void run(KeyQueue q) {
+            for (int i = 0; i < batch; i++) {
+                Runnable fn = q.tasks.poll();
+                if (fn == null) break;
+                if (!shutdown) Thread.interrupted(); // 清除上一个任务留下的中断标志
+                try { fn.run(); } catch (Throwable ex) {
+                    log.error(thread.getName() + " -> execute error. affinity: " + q.key, ex);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+            if (!q.tasks.isEmpty()) { q.home.offer(q); return; }
+            q.scheduled.set(false);
+            // 释放后又有新任务入队
+            if (!q.tasks.isEmpty() && q.scheduled.compareAndSet(false, true)) { q.home.offer(q); return; }
+            if (q.key != null) keys.computeIfPresent(q.key, (k, v) -> v == q && v.tasks.isEmpty() && !v.scheduled.get() ? null : v);
+        }
+    }
+
+
+    /**
+     * 一个亲和键的任务对列
+     */
+    protected static class KeyQueue {
+        final Object          key;
+        // 所属的道
+        final Lane            home;
+        final Queue<Runnable> tasks     = new ConcurrentLinkedQueue<>();
+        // 是否已在某个道中待执行 或 正在执行
+        final AtomicBoolean   scheduled = new AtomicBoolean(false);
+
+        KeyQueue(Object key, Lane home) { this.key = key; this.home = home; }
+    }
+
+
+    /**
+     * 设置一个键连续执行多少个任务后让出线程. 默认64
+     */
+    public LaneExecutor setBatch(int batch) {
+        if (batch < 1) throw new IllegalArgumentException("Param batch >= 1");
+        this.batch = batch;
+        return this;
+    }
+
+
+    @Override
+    public void shutdown() { shutdown = true; }
+
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> ls = new ArrayList<>();
+        for (Lane l : lanes) {
+            for (KeyQueue q = l.ready.pollFirst(); q != null; q = l.ready.pollFirst()) {
+                for (Runnable fn = q.tasks.poll(); fn != null; fn = q.tasks.poll()) { ls.add(fn); pending.decrementAndGet(); }
+            }
+            l.thread.interrupt();
+        }
+        return ls;
+    }
+
+
+    @Override
+    public boolean isShutdown() { return shutdown; }
+
+
+    @Override
+    public boolean isTerminated() { return terminated.getCount() == 0; }
+
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LaneExecutor[keys: ").append(keys.size()).append(", lanes: ");
+        for (Lane l : lanes) sb.append(l.ready.size()).append(l.busy ? "*" : "").append(' ');
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,85 @@
+package cn.xnatural.task;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 步骤耗时记录: 保留最近 {@link #capacity} 次耗时, 用于计算对冲执行的延迟阈值
+ * 一般多个任务(同一类步骤)共用一个实例
+ */
+public class LatencyRecorder {
+    // 最近的耗时(纳秒). 环形覆盖
+    private final AtomicLongArray samples;
+    // 共记录了多少次
+    private final AtomicLong      count = new AtomicLong();
+    // 保留最近多少次
+    private final int             capacity;
+    // 对冲阈值取第几百分位. 例: 0.95
+    private final double          percentile;
+    // 样本不足时的默认阈值(毫秒)
+    private final long            defaultMs;
+    // 最少多少个样本才计算百分位
+    private final int             minSamples;
+
+
+    /**
+     * @param capacity 保留最近多少次耗时
+     * @param percentile 对冲阈值取第几百分位(0, 1]. 例: 0.95
+     * @param defaultMs 样本不足时的默认阈值(毫秒)
+     */
+    public LatencyRecorder(int capacity, double percentile, long defaultMs) {
+        if (capacity < 1) throw new IllegalArgumentException("Param capacity must > 0");
+        if (percentile <= 0 || percentile > 1) throw new IllegalArgumentException("Param percentile must in (0, 1]");
+        this.capacity = capacity; this.percentile = percentile; this.defaultMs = defaultMs;
+        this.samples = new AtomicLongArray(capacity);
+        this.minSamples = Math.min(capacity, 20);
+    }
+    public LatencyRecorder() { this(256, 0.95, 1000); }
+
+
+    /**
+     * 记录一次耗时
+     * @param nanos 耗时(纳秒)
+     */
+    public void record(long nanos) {
+        samples.set((int) (count.getAndIncrement() % capacity), nanos);
+    }
+
+
+    /**
+     * 第几百分位耗时
+     * @param p (0, 1]
+     * @return 纳秒. 无样本返回 -1
+     */
+    public long percentile(double p) {
+        int n = (int) Math.min(count.get(), capacity);
+        if (n == 0) return -1;
+        long[] arr = new long[n];
+        for (int i = 0; i < n; i++) arr[i] = samples.get(i);
+        Arrays.sort(arr);
+        return arr[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+    }
+
+
+    /**
+     * 当前对冲阈值(毫秒): 样本足够时取 {@link #percentile} 百分位, 否则取默认值
+     */
+    public long threshold() {
+        if (count.get() < minSamples) return defaultMs;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(percentile(percentile)));
+    }
+
+
+    /**
+     * 共记录了多少次
+     */
+    public long count() { return count.get(); }
+
+
+    @Override
+    public String toString() {
+        return "LatencyRecorder[count: " + count.get() + ", threshold: " + threshold() + "ms]";
+    }
+}
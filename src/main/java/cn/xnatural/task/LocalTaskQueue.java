@@ -0,0 +1,39 @@
+package cn.xnatural.task;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 进程内等待执行对列
+ * @param <T> Task 类型
+ */
+public class LocalTaskQueue<T extends TaskWrapper> implements TaskQueue<T> {
+    protected final Queue<T> queue;
+
+
+    public LocalTaskQueue(Queue<T> queue) {
+        if (queue == null) throw new IllegalArgumentException("Param queue required");
+        this.queue = queue;
+    }
+    public LocalTaskQueue() { this(new ConcurrentLinkedQueue<>()); }
+
+
+    @Override
+    public boolean offer(T task) { return queue.offer(task); }
+
+
+    @Override
+    public T poll() { return queue.poll(); }
+
+
+    @Override
+    public boolean isEmpty() { return queue.isEmpty(); }
+
+
+    @Override
+    public int size() { return queue.size(); }
+
+
+    @Override
+    public String toString() { return queue.toString(); }
+}
@@ -0,0 +1,94 @@
+package cn.xnatural.task;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 拉取式结果输出: 有界阻塞对列, 满了则任务执行线程等待消费
+ * 单个消费线程迭代, {@link #hasNext()} 阻塞直到有结果 或 容器结束
+ * {@link TaskContext#results(int)}
+ * @param <T> Task 类型
+ */
+public class ResultIterator<T extends TaskWrapper> implements Iterator<TaskResult<T>>, ResultSink<T> {
+    // 结束标记
+    private static final TaskResult    END = new TaskResult<>(null, null, null);
+    protected final BlockingQueue<TaskResult<T>> queue;
+    /**
+     * 对列已满时不阻塞输出的结果 {@link #offer(TaskResult)}. 不限个数
+     */
+    protected final Queue<TaskResult<T>>         overflow = new ConcurrentLinkedQueue<>();
+    private TaskResult<T>                        next;
+    private boolean                              ended;
+    // 容器已结束. 对列已满时结束标记放不进去, 消费完后据此结束
+    private volatile boolean                     closed;
+
+
+    /**
+     * @param capacity 最多缓存多少个未消费的结果
+     */
+    public ResultIterator(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Param capacity must > 0");
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    @Override
+    public void accept(TaskResult<T> result) {
+        try { queue.put(result); } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting result consumer: " + result.getKey());
+        }
+    }
+
+
+    /**
+     * 不阻塞: 对列已满时放入 {@link #overflow}
+     */
+    @Override
+    public void offer(TaskResult<T> result) {
+        if (!queue.offer(result)) overflow.offer(result);
+    }
+
+
+    /**
+     * 不阻塞: 消费线程已不再迭代时, 停止容器的线程不等待
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.offer(END);
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) return true;
+        if (ended) return false;
+        try {
+            TaskResult<T> r = queue.poll();
+            if (r == null) r = overflow.poll(); // 只有对列已满时才放入 overflow, 所以两个都为空时阻塞等待不会遗漏
+            // 对列为空时才阻塞等待: 此时结束标记一定能放入
+            if (r == null) r = closed ? END : queue.take();
+            if (r == END) { ended = true; return false; }
+            next = r;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting result");
+        }
+    }
+
+
+    @Override
+    public TaskResult<T> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        TaskResult<T> r = next;
+        next = null;
+        return r;
+    }
+}
@@ -0,0 +1,64 @@
+package cn.xnatural.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link TaskContext} 的结果输出通道
+ * 在任务的执行线程中调用, 并且调用时任务仍占用执行名额: 输出慢(阻塞)则容器分发新任务变慢, 即背压
+ * @param <T> Task 类型
+ */
+public interface ResultSink<T extends TaskWrapper> {
+
+    /**
+     * 输出一个任务结果. 可阻塞
+     * @param result {@link TaskResult}
+     */
+    void accept(TaskResult<T> result);
+
+
+    /**
+     * 不阻塞地输出一个任务结果: 取消/丢弃的任务, 可能在调用 {@link TaskWrapper#cancel()} 或 {@link TaskContext#stopNow()} 的线程中(例: 消费线程自己)输出
+     * 默认同 {@link #accept}
+     * @param result {@link TaskResult}
+     */
+    default void offer(TaskResult<T> result) { accept(result); }
+
+
+    /**
+     * 容器结束时调用
+     */
+    default void close() {}
+
+
+    /**
+     * 批量输出: 每满 batchSize 个调用一次 consumer, 容器结束时输出剩余的
+     * @param batchSize 批大小
+     * @param consumer 批处理函数. 同一时间只有一个线程调用
+     * @param <T> Task 类型
+     * @return {@link ResultSink}
+     */
+    static <T extends TaskWrapper> ResultSink<T> batch(int batchSize, Consumer<List<TaskResult<T>>> consumer) {
+        if (batchSize < 1) throw new IllegalArgumentException("Param batchSize must > 0");
+        if (consumer == null) throw new IllegalArgumentException("Param consumer required");
+        return new ResultSink<T>() {
+            List<TaskResult<T>> buf = new ArrayList<>(batchSize);
+
+            @Override
+            public synchronized void accept(TaskResult<T> result) {
+                buf.add(result);
+                if (buf.size() >= batchSize) flush();
+            }
+
+            @Override
+            public synchronized void close() { if (!buf.isEmpty()) flush(); }
+
+            private void flush() {
+                List<TaskResult<T>> batch = buf;
+                buf = new ArrayList<>(batchSize);
+                consumer.accept(batch);
+            }
+        };
+    }
+}
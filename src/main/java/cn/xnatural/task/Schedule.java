@@ -0,0 +1,132 @@
+package cn.xnatural.task;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * {@link TaskContext} 中的定时任务: 延迟添加 或 周期添加任务
+ * 未取消的定时任务使容器保持运行; 容器停止时全部取消
+ * {@link TaskContext#addTask(TaskWrapper, long, TimeUnit)}
+ * {@link TaskContext#scheduleAtFixedRate(Supplier, long, long, TimeUnit)}
+ * {@link TaskContext#scheduleWithFixedDelay(Supplier, long, long, TimeUnit)}
+ * @param <T> Task 类型
+ */
+public class Schedule<T extends TaskWrapper> {
+    protected final TaskContext<T>       ctx;
+    /**
+     * 每次到期时创建任务. 返回null则跳过本次
+     */
+    protected final Supplier<? extends T> factory;
+    /**
+     * 周期(纳秒). 0: 只执行一次
+     */
+    protected final long                 period;
+    /**
+     * true: 固定频率(按到期时间计算下一次); false: 固定延迟(上一个任务结束后计算下一次)
+     */
+    protected final boolean              fixedRate;
+    /**
+     * 已添加了多少个任务
+     */
+    protected final AtomicLong           count = new AtomicLong();
+    // 下一次到期时间(纳秒)
+    private         long                 nextAt;
+    private volatile boolean             cancelled;
+    private volatile TimingWheel.Timeout timeout;
+
+
+    Schedule(TaskContext<T> ctx, Supplier<? extends T> factory, long period, boolean fixedRate) {
+        this.ctx = ctx; this.factory = factory; this.period = period; this.fixedRate = fixedRate;
+    }
+
+
+    /**
+     * 开始计时
+     * @param delay 首次延迟(纳秒)
+     */
+    void start(long delay) {
+        nextAt = System.nanoTime() + delay;
+        arm();
+    }
+
+
+    private void arm() {
+        if (cancelled) return;
+        timeout = ctx.timer().schedule(this::fire, nextAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (cancelled) timeout.cancel(); // 和 cancel 并发
+    }
+
+
+    /**
+     * 到期: 创建任务并添加到容器
+     */
+    protected void fire() {
+        if (cancelled) return;
+        T task;
+        try {
+            task = factory.get();
+        } catch (Exception ex) {
+            TaskContext.log.error(ctx.key + " -> schedule create task error", ex);
+            task = null;
+        }
+        boolean added = false;
+        if (task != null) {
+            count.incrementAndGet();
+            // 固定延迟: 任务结束时计算下一次 {@link #next()}
+            if (period > 0 && !fixedRate) ctx.fixedDelayTasks.put(task, this);
+            try {
+                added = ctx.enqueue(task);
+            } catch (Exception ex) {
+                TaskContext.log.error(ctx.key + " -> schedule add task error: " + task.key, ex);
+            }
+            if (!added) ctx.fixedDelayTasks.remove(task);
+        }
+        if (period == 0) { cancel(); return; }
+        if (fixedRate) nextAt += period;
+        else if (added) return;
+        else nextAt = System.nanoTime() + period;
+        arm();
+    }
+
+
+    /**
+     * 固定延迟: 上一个任务已结束, 开始下一次计时
+     */
+    void next() {
+        nextAt = System.nanoTime() + period;
+        arm();
+    }
+
+
+    /**
+     * 取消. 已添加的任务不受影响
+     * @return false: 已取消
+     */
+    public boolean cancel() {
+        if (cancelled) return false;
+        synchronized (this) {
+            if (cancelled) return false;
+            cancelled = true;
+        }
+        TimingWheel.Timeout t = timeout;
+        if (t != null) t.cancel();
+        ctx.unschedule(this);
+        return true;
+    }
+
+
+    public boolean isCancelled() { return cancelled; }
+
+
+    /**
+     * 已添加了多少个任务
+     */
+    public long getCount() { return count.get(); }
+
+
+    @Override
+    public String toString() {
+        return "Schedule[period: " + TimeUnit.NANOSECONDS.toMillis(period) + "ms, fixedRate: " + fixedRate + ", count: " + count.get() + ", cancelled: " + cancelled + "]";
+    }
+}
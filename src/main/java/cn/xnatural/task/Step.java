@@ -4,7 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.event.Level;
 import org.slf4j.spi.LocationAwareLogger;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
 
@@ -20,24 +21,46 @@ public class Step<I, R> {
     protected final Predicate<Step> condition;
     // 当前关联的任务
     private final TaskWrapper task;
-    // 是否正在执行
-    private final AtomicBoolean running = new AtomicBoolean(false);
+    // 父步骤. 并行步骤的分支
+    private final Step parent;
+    private static final AtomicIntegerFieldUpdater<Step> RUNNING = AtomicIntegerFieldUpdater.newUpdater(Step.class, "running");
+    // 是否正在执行. 1: 正在执行
+    private volatile int running;
     // 执行结果
     private R result;
+    // 是否保留执行结果. 紧凑模式下不释放 {@link TaskWrapper#compact()}
+    protected boolean retain;
+    // 熔断器(可选)
+    protected CircuitBreaker breaker;
+    // 熔断器打开时: true: 暂停任务等待熔断恢复; false: 立即失败
+    protected boolean park;
     // 是否执行结束
     protected boolean end;
     // 执行第几次
     private int times;
+    // 是否已取消
+    private volatile boolean cancelled;
     // 第几个步骤
     public final int num;
 
 
     public Step(TaskWrapper task, BiFunction<I, Step, R> fn, Predicate<Step> condition) {
-        this.task = task; this.fn = fn; this.condition = condition;
+        this.task = task; this.fn = fn; this.condition = condition; this.parent = null;
         this.num = task == null ? -1 : task.steps.size() + 1;
     }
 
 
+    /**
+     * 并行分支步骤
+     * @param parent 所属并行步骤
+     * @param fn 分支执行函数
+     */
+    Step(Step parent, BiFunction<I, Step, R> fn) {
+        this.task = parent.task; this.fn = fn; this.condition = null; this.parent = parent;
+        this.num = parent.num;
+    }
+
+
     /**
      * 是否需要重试
      * @param r 执行结果
@@ -58,19 +81,65 @@ public class Step<I, R> {
      */
     protected R apply(I input) {
         if (end) return result;
-        if (running.compareAndSet(false, true)) {
-            times++;
-            result = fn.apply(input, this);
-            if (needReRun(result)) result = null;
-            else end = true;
-            running.set(false);
+        if (RUNNING.compareAndSet(this, 0, 1)) {
+            try {
+                times++;
+                result = fn.apply(input, this);
+                if (needReRun(result)) result = null;
+                else end = true;
+            } finally {
+                running = 0;
+            }
         }
         return result;
     }
 
 
     /**
-     * 执行的结果
+     * 是否已取消. 任务被取消 或 并行步骤中其它分支已失败
+     * 耗时的执行函数应适时检查, 尽早退出
+     */
+    public boolean isCancelled() {
+        if (cancelled) return true;
+        if (parent != null) return parent.isCancelled();
+        return task != null && task.isCancelled();
+    }
+
+
+    /**
+     * 已取消则抛出 {@link CancellationException}
+     */
+    public void checkCancelled() {
+        if (isCancelled()) throw new CancellationException(task == null ? "cancelled" : task.logPrefix() + "step" + num + " cancelled");
+    }
+
+
+    /**
+     * 取消当前步骤
+     */
+    void cancel() { cancelled = true; }
+
+
+    /**
+     * 保留执行结果: 紧凑模式下不释放 {@link TaskWrapper#compact()}
+     */
+    public Step<I, R> retain() { retain = true; return this; }
+
+
+    /**
+     * 设置熔断器 {@link TaskWrapper#breaker(CircuitBreaker, boolean)}
+     */
+    public Step<I, R> breaker(CircuitBreaker breaker, boolean park) { this.breaker = breaker; this.park = park; return this; }
+
+
+    /**
+     * 释放执行结果(已被下一个步骤使用). 保留的不释放
+     */
+    void release() { if (!retain) result = null; }
+
+
+    /**
+     * 执行的结果. 紧凑模式下下一个步骤完成后为null(除非保留 {@link #retain()})
      */
     public R getResult() { return result; }
 
@@ -3,14 +3,22 @@ package cn.xnatural.task;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * 执行上下文/任务调度/执行容器: 一组逻辑相关性的{@link TaskWrapper}
@@ -33,12 +41,61 @@ public class TaskContext<T extends TaskWrapper> {
     protected String                         key;
     /**
      * 等待执行的任务对列
+     * 默认 {@link #taskQueue} 的存储; 设置了其它对列 {@link #setTaskQueue(TaskQueue)} 后不再使用
      */
     protected final        Queue<T>          waitingTasks   = new ConcurrentLinkedQueue<>();
+    /**
+     * 等待执行对列. 默认: 进程内对列 {@link #waitingTasks}
+     */
+    protected              TaskQueue<T>      taskQueue      = new LocalTaskQueue<>(waitingTasks);
     /**
      * 正在执行的任务对列
      */
     protected final        Queue<T>          executingTasks = new ConcurrentLinkedQueue<>();
+    /**
+     * 已占用的执行名额. 包括已取出还未加入 {@link #executingTasks} 的任务
+     */
+    protected final        AtomicInteger     executingCnt   = new AtomicInteger();
+    /**
+     * 被容器暂停 {@link #suspend()} 的任务. 容器恢复时恢复执行
+     */
+    protected final        Set<T>            suspendedTasks = ConcurrentHashMap.newKeySet();
+    private final          Object            pauseLock      = new Object();
+    /**
+     * 未结束的定时任务. 不为空时容器不会结束
+     */
+    protected final        Set<Schedule<T>>  schedules      = ConcurrentHashMap.newKeySet();
+    /**
+     * 固定延迟定时任务创建的任务 -> 定时任务. 任务结束时开始下一次计时
+     */
+    final                  Map<T, Schedule<T>> fixedDelayTasks = new ConcurrentHashMap<>();
+    /**
+     * 被熔断暂停的任务(不占用执行名额). 到期后移到 {@link #unparkedTasks}
+     */
+    protected final        Set<T>            parkedTasks    = ConcurrentHashMap.newKeySet();
+    /**
+     * 熔断暂停到期的任务. 优先分发
+     */
+    protected final        Queue<T>          unparkedTasks  = new ConcurrentLinkedQueue<>();
+    /**
+     * 亲和键 -> 同键排队的任务. 有此键表示同键已有一个任务在执行(占用名额 或 熔断暂停), 其它同键任务在此排队(不占用名额)
+     */
+    protected final        Map<Object, Queue<T>> affinityTasks = new ConcurrentHashMap<>();
+    /**
+     * 同键上一个任务结束后轮到的任务. 优先分发
+     */
+    protected final        Queue<T>          affinityReady  = new ConcurrentLinkedQueue<>();
+    /**
+     * 任务源: 有执行名额并且等待对列为空时才从中取任务 {@link #addSource(Iterator)}
+     */
+    protected final        Queue<Iterator<? extends T>> sources = new ConcurrentLinkedQueue<>();
+    private final          Object            sourceLock     = new Object();
+    // 是否有未取完就被移除的任务源
+    private volatile       boolean           sourceDropped;
+    /**
+     * 定时任务的时间轮. 第一次添加定时任务时创建
+     */
+    private volatile       TimingWheel       timer;
     /**
      * 容器能运行的Task最大个数限制, 即: 并行Task的个数限制
      * {@link #executingTasks}
@@ -60,6 +117,18 @@ public class TaskContext<T extends TaskWrapper> {
      * 当前状态
      */
     protected final  AtomicReference<Status> status         = new AtomicReference<>();
+    /**
+     * 任务结果输出(可选)
+     */
+    protected              ResultSink<T>     resultSink;
+    /**
+     * 执行线程看门狗(可选)
+     */
+    protected              Watchdog          watchdog;
+    /**
+     * 执行追踪(可选)
+     */
+    protected              Tracer            tracer;
     /**
      * 属性集
      */
@@ -74,7 +143,7 @@ public class TaskContext<T extends TaskWrapper> {
     public TaskContext(String key, ExecutorService executor) {
         if (key == null || key.isEmpty()) {
             this.key = "TaskContext[" + Integer.toHexString(hashCode()) + "]";
-        }
+        } else this.key = key;
         this.executor = executor == null ? Executors.newFixedThreadPool(4, new ThreadFactory() {
             final AtomicInteger i = new AtomicInteger(1);
             @Override
@@ -103,16 +172,16 @@ public class TaskContext<T extends TaskWrapper> {
         log.info(key + " -> starting");
         try {
             doStart(this);
-            if (waitingTasks.isEmpty()) {
+            if (taskQueue.isEmpty() && schedules.isEmpty() && sources.isEmpty() && parkedTasks.isEmpty()) {
                 log.warn(key + " -> not found task");
                 status.set(Status.OkStopped);
-                doStop(this); return this;
+                stopped(); return this;
             }
             trigger();
         } catch (Exception t) {
             log.error(key + " -> start fail", t);
             status.set(Status.FailStopped);
-            doStop(this);
+            stopped();
         }
         return this;
     }
@@ -130,31 +199,137 @@ public class TaskContext<T extends TaskWrapper> {
     protected final void trigger() {
         // 触发任务执行. 1. 当前状态为Running; 2. 当前状态为Ready
         if (status.get() == Status.Running || status.compareAndSet(Status.Ready, Status.Running)) {
-            while (!waitingTasks.isEmpty() && status.get() == Status.Running && executingTasks.size() < parallelLimit) {
-                T task = waitingTasks.poll();
-                if (task == null) break;
+            // 恢复被容器暂停的任务
+            if (!suspendedTasks.isEmpty()) {
+                synchronized (pauseLock) {
+                    if (status.get() == Status.Running) {
+                        for (T t : suspendedTasks) t.resume();
+                        suspendedTasks.clear();
+                    }
+                }
+            }
+            while (status.get() == Status.Running) {
+                // 先占用执行名额再取任务, 保证正在执行的任务数不超过 parallelLimit
+                int n = executingCnt.get();
+                if (n >= parallelLimit) break;
+                if (!executingCnt.compareAndSet(n, n + 1)) continue;
+                T task = unparkedTasks.poll();
+                if (task == null) task = affinityReady.poll();
+                if (task == null) task = taskQueue.poll();
+                if (task == null) task = pull(); // 衍生任务优先, 再从任务源取
+                if (task == null) { executingCnt.decrementAndGet(); break; }
+                task.ctx = this; // 共享对列中其它进程添加的任务
+                task.holding.set(true); // 本次占用的名额归任务, 由 release 释放一次
+                if (task.isEnd()) { release(task); releaseKey(task); continue; } // 熔断暂停中/同键排队中被取消, 已结束
+                if (!acquireKey(task)) { release(task); continue; } // 同键已有任务在执行: 排队, 不占用名额
+                // 下一步骤的熔断器已打开: 不分发. 暂停 或 丢弃
+                final Step broken = task.brokenStep();
+                if (broken != null && broken.park) { // 暂停, 释放本次占用的名额
+                    park(task, Math.max(1, broken.breaker.retryAfter()), false);
+                    continue;
+                }
                 executingTasks.add(task);
-                exec(task::run); // 每个Task开始, 用一个新的执行栈
+                if (task.isEnd()) { executingTasks.remove(task); release(task); continue; } // 分发前被取消
+                if (broken != null) { // 异步丢弃, 避免连续丢弃时递归过深. 结束前占用名额
+                    final T t = task;
+                    exec(() -> t.reject(new CircuitBreaker.OpenException(t.logPrefix() + "Step" + broken.num + " shed. " + broken.breaker)));
+                    continue;
+                }
+                if (tracer != null) tracer.instant(Tracer.DISPATCH, task.key, -1);
+                exec(task.affinity, task::run); // 每个Task开始, 用一个新的执行栈
             }
         }
         // 暂停所有正在执行的任务
         if (status.get() == Status.Paused) {
-            for (T t : executingTasks) t.suspend();
+            synchronized (pauseLock) {
+                if (status.get() == Status.Paused) {
+                    for (T t : executingTasks) {
+                        if (t.status.compareAndSet(TaskWrapper.Status.Running, TaskWrapper.Status.Paused)) suspendedTasks.add(t);
+                    }
+                }
+            }
         }
         // 主动停止时, 执行队列全都是暂停任务, 则尝试恢复所有执行
         if (status.get() == Status.Stopping && executingTasks.stream().allMatch(t -> t.status.get() == TaskWrapper.Status.Paused)) {
             for (T t : executingTasks) t.resume();
         }
-        // 判断是否已结束
+        // 主动停止时, 熔断暂停中的任务不再等待到期: 取消(失败结束, 输出结果). 先从对列移除, 再取消
+        if (status.get() == Status.Stopping && !(parkedTasks.isEmpty() && unparkedTasks.isEmpty())) {
+            for (T t : parkedTasks) { if (parkedTasks.remove(t)) cancelParked(t); }
+            for (T t = unparkedTasks.poll(); t != null; t = unparkedTasks.poll()) cancelParked(t);
+        }
+        // 判断是否已结束. 依次判断定时任务, 熔断暂停, 同键排队, 任务源, 等待对列, 执行名额: 定时任务/熔断到期/同键轮到先加入对列再移除(释放名额), 取任务前已占用名额
+        // 先判断一次执行名额: 有任务在执行时不检查等待对列(共享对列的检查需要扫描目录)
         if (
-                status.get() != Status.Paused && executingTasks.isEmpty() &&
+                status.get() != Status.Paused &&
                 (
-                    (status.get() == Status.Running && waitingTasks.isEmpty() && status.compareAndSet(Status.Running, failureCnt.longValue() > 0 ? Status.FailStopped : Status.OkStopped)) ||
-                    (status.get() == Status.Stopping && status.compareAndSet(Status.Stopping, failureCnt.longValue() > 0 ? Status.FailStopped : Status.OkStopped))
+                    (status.get() == Status.Running && executingCnt.get() == 0 && schedules.isEmpty() && parkedTasks.isEmpty() && unparkedTasks.isEmpty() && affinityTasks.isEmpty() && affinityReady.isEmpty() && sources.isEmpty() && taskQueue.isEmpty() && executingCnt.get() == 0 && status.compareAndSet(Status.Running, failureCnt.longValue() > 0 ? Status.FailStopped : Status.OkStopped)) ||
+                    (status.get() == Status.Stopping && executingCnt.get() == 0 && status.compareAndSet(Status.Stopping, failureCnt.longValue() > 0 ? Status.FailStopped : Status.OkStopped))
                 )
         ) {
-            doStop(this);
+            stopped();
+        }
+    }
+
+
+    /**
+     * 从任务源取一个任务. 取完的任务源移除
+     * @return null: 没有任务源 或 都已取完
+     */
+    protected T pull() {
+        if (sources.isEmpty()) return null;
+        synchronized (sourceLock) {
+            for (Iterator<? extends T> it = sources.peek(); it != null; it = sources.peek()) {
+                T task;
+                try {
+                    if (!it.hasNext()) { closeSource(sources.poll()); continue; }
+                    task = it.next();
+                } catch (Exception ex) {
+                    log.error(key + " -> task source error. Dropped", ex);
+                    closeSource(sources.poll()); continue;
+                }
+                if (task == null || !preAddTask(task)) continue;
+                task.ctx = this;
+                if (tracer != null) tracer.instant(Tracer.ENQUEUE, task.key, -1);
+                return task;
+            }
+        }
+        return null;
+    }
+
+
+    private void closeSource(Iterator<? extends T> it) {
+        if (it instanceof AutoCloseable) {
+            try { ((AutoCloseable) it).close(); } catch (Exception ex) {
+                log.error(key + " -> close task source error", ex);
+            }
+        }
+    }
+
+
+    /**
+     * 移除并关闭所有任务源
+     */
+    protected void clearSources() {
+        synchronized (sourceLock) {
+            for (Iterator<? extends T> it = sources.poll(); it != null; it = sources.poll()) {
+                sourceDropped = true;
+                closeSource(it);
+            }
+        }
+    }
+
+
+    /**
+     * 已结束: 关闭结果输出, 然后 {@link #doStop}
+     */
+    private void stopped() {
+        if (resultSink != null) {
+            try { resultSink.close(); } catch (Exception ex) {
+                log.error(key + " -> result sink close error", ex);
+            }
         }
+        doStop(this);
     }
 
 
@@ -162,7 +337,12 @@ public class TaskContext<T extends TaskWrapper> {
      * 结束执行
      */
     protected void doStop(TaskContext<T> ctx) {
-        log.info(key + " -> finished({}). spend: {}ms, successCnt: {}, failureCnt: {}, waiting: {}", status.get(), System.currentTimeMillis() - startTime.getTime(), successCnt, failureCnt, waitingTasks.size());
+        log.info(key + " -> finished({}). spend: {}ms, successCnt: {}, failureCnt: {}, waiting: {}", status.get(), System.currentTimeMillis() - startTime.getTime(), successCnt, failureCnt, taskQueue.size());
+        TimingWheel w = timer;
+        if (w != null) w.stop();
+        if (watchdog != null) watchdog.stop();
+        clearSources();
+        taskQueue.close();
         executor.shutdown();
     }
 
@@ -180,19 +360,173 @@ public class TaskContext<T extends TaskWrapper> {
      * 进入等待执行对列
      */
     public final TaskContext<T> addTask(final T task) {
-        if (status.get() == Status.OkStopped || status.get() == Status.FailStopped) throw new RuntimeException(key + " already stopped. Cannot add task: " + task.key);
+        enqueue(task);
+        return this;
+    }
+
+
+    /**
+     * 添加任务
+     * @return false: 未添加(为空 或 被 {@link #preAddTask} 拒绝)
+     */
+    final boolean enqueue(final T task) {
+        if (status.get() == Status.OkStopped || status.get() == Status.FailStopped) throw new RuntimeException(key + " already stopped. Cannot add task: " + (task == null ? null : task.key));
         if (task == null) {
-            log.warn(key + " -> add task is null"); return this;
+            log.warn(key + " -> add task is null"); return false;
         }
-        if (!preAddTask(task)) return this;
+        if (!preAddTask(task)) return false;
         task.ctx = this;
-        waitingTasks.offer(task);
+        taskQueue.offer(task);
+        if (tracer != null) tracer.instant(Tracer.ENQUEUE, task.key, -1);
         log.debug("{} -> added task: {}", key, task.key);
         trigger();
+        return true;
+    }
+
+
+    /**
+     * 添加任务源: 有执行名额并且等待对列为空时, 才从中取下一个任务(不预先创建所有任务)
+     * 任务源取完前容器不会结束. 多个任务源按添加顺序依次取
+     * 迭代器实现 {@link AutoCloseable} 时, 取完 或 容器结束时关闭
+     * 注意: hasNext/next 在分发任务的线程中执行(串行), 不应长时间阻塞
+     * @param source 任务迭代器. 返回null的元素跳过
+     */
+    public TaskContext<T> addSource(Iterator<? extends T> source) {
+        if (source == null) throw new IllegalArgumentException("Param source required");
+        if (status.get() == Status.OkStopped || status.get() == Status.FailStopped) throw new RuntimeException(key + " already stopped. Cannot add task source");
+        sources.offer(source);
+        trigger();
         return this;
     }
 
 
+    /**
+     * 添加任务源: 流. 例: addSource(Files.lines(path).map(line -> new TaskWrapper(line)...))
+     * 取完 或 容器结束时关闭流
+     * @param source 任务流
+     */
+    public TaskContext<T> addSource(Stream<? extends T> source) {
+        if (source == null) throw new IllegalArgumentException("Param source required");
+        final Iterator<? extends T> it = source.iterator();
+        class StreamSource implements Iterator<T>, AutoCloseable {
+            @Override
+            public boolean hasNext() { return it.hasNext(); }
+            @Override
+            public T next() { return it.next(); }
+            @Override
+            public void close() { source.close(); }
+        }
+        return addSource(new StreamSource());
+    }
+
+
+    /**
+     * 添加分页任务源: 当前页取完后再调用 pages 取下一页
+     * @param pages 下一页任务. 返回null或空集合表示已取完
+     */
+    public TaskContext<T> addSource(Supplier<? extends Collection<? extends T>> pages) {
+        if (pages == null) throw new IllegalArgumentException("Param pages required");
+        return addSource(new Iterator<T>() {
+            Iterator<? extends T> page;
+            boolean end;
+
+            @Override
+            public boolean hasNext() {
+                while (!end && (page == null || !page.hasNext())) {
+                    Collection<? extends T> c = pages.get();
+                    if (c == null || c.isEmpty()) { end = true; page = null; }
+                    else page = c.iterator();
+                }
+                return !end;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.next();
+            }
+        });
+    }
+
+
+    /**
+     * 延迟添加任务. 到期前容器不会结束
+     * @param task 任务
+     * @param delay 延迟
+     * @param unit 时间单位
+     */
+    public TaskContext<T> addTask(final T task, long delay, TimeUnit unit) {
+        if (task == null) throw new IllegalArgumentException("Param task required");
+        schedule(() -> task, delay, 0, unit, false);
+        return this;
+    }
+
+
+    /**
+     * 固定频率添加任务: 每隔 period 调用 factory 创建一个任务添加到容器, 不等待上一个任务结束
+     * @param factory 任务创建函数. 返回null则跳过本次
+     * @param initialDelay 首次延迟
+     * @param period 周期
+     * @param unit 时间单位
+     * @return {@link Schedule} 取消后容器才能正常结束
+     */
+    public Schedule<T> scheduleAtFixedRate(Supplier<? extends T> factory, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("Param period must > 0");
+        return schedule(factory, initialDelay, period, unit, true);
+    }
+
+
+    /**
+     * 固定延迟添加任务: 上一个任务结束后延迟 delay 再创建下一个任务
+     * @param factory 任务创建函数. 返回null则跳过本次
+     * @param initialDelay 首次延迟
+     * @param delay 任务结束后的延迟
+     * @param unit 时间单位
+     * @return {@link Schedule} 取消后容器才能正常结束
+     * 注意: 按任务对象跟踪结束, 不支持多进程共享对列 {@link TaskQueue#isShared()}
+     */
+    public Schedule<T> scheduleWithFixedDelay(Supplier<? extends T> factory, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) throw new IllegalArgumentException("Param delay must > 0");
+        // 共享对列取出的是解码后的新对象(可能在其它进程中结束), 无法据此开始下一次计时
+        if (taskQueue.isShared()) throw new RuntimeException(key + " fixed delay schedule not supported with shared task queue: " + taskQueue);
+        return schedule(factory, initialDelay, delay, unit, false);
+    }
+
+
+    protected Schedule<T> schedule(Supplier<? extends T> factory, long initialDelay, long period, TimeUnit unit, boolean fixedRate) {
+        if (factory == null) throw new IllegalArgumentException("Param factory required");
+        if (unit == null) throw new IllegalArgumentException("Param unit required");
+        if (status.get() == Status.OkStopped || status.get() == Status.FailStopped || status.get() == Status.Stopping) throw new RuntimeException(key + " already stopped. Cannot schedule task");
+        Schedule<T> s = new Schedule<>(this, factory, unit.toNanos(period), fixedRate);
+        schedules.add(s);
+        s.start(unit.toNanos(Math.max(0, initialDelay)));
+        return s;
+    }
+
+
+    /**
+     * 定时任务已取消/已结束
+     */
+    void unschedule(Schedule<T> s) {
+        if (schedules.remove(s)) trigger();
+    }
+
+
+    /**
+     * 定时任务的时间轮
+     */
+    protected TimingWheel timer() {
+        TimingWheel w = timer;
+        if (w == null) {
+            synchronized (this) {
+                if (timer == null) timer = new TimingWheel(key + "-timer");
+                w = timer;
+            }
+        }
+        return w;
+    }
+
+
     /**
      * 删除一个Task 之前 做的操作
      * @param task {@link TaskWrapper}
@@ -205,16 +539,120 @@ public class TaskContext<T extends TaskWrapper> {
      * @param task {@link TaskWrapper}
      */
     protected final void removeTask(final T task) {
-        log.trace(key + " -> remove task: {}", task.key);
+        log.trace("{} -> remove task: {}", key, task.key);
         preRemoveTask(task);
         if (task.isSuccessEnd()) successCnt.increment();
         else failureCnt.increment();
+        // 停止时被取消(未执行完)的任务归还: 共享对列中由其它进程继续执行
+        if (task.isCancelled() && !task.isSuccessEnd() && status.get() == Status.Stopping) taskQueue.release(task);
+        else taskQueue.ack(task);
+        // 输出结果. 输出完成前任务仍占用执行名额(背压)
+        if (resultSink != null) {
+            try {
+                final TaskResult<T> r = new TaskResult<>(task, task.output, task.error);
+                // 取消/丢弃的任务可能在调用方线程中结束(例: 消费线程调用 stopNow): 不阻塞
+                if (task.isCancelled() || task.error instanceof CircuitBreaker.OpenException) resultSink.offer(r);
+                else resultSink.accept(r);
+            } catch (Exception ex) {
+                log.error(key + " -> result sink error: " + task.key, ex);
+            }
+        }
+        task.output = null;
+        if (!fixedDelayTasks.isEmpty()) {
+            Schedule<T> s = fixedDelayTasks.remove(task);
+            if (s != null) s.next(); // 固定延迟: 开始下一次计时
+        }
+        // 熔断暂停中被取消的任务. 两个都移除: 到期时先加入 unparkedTasks 再从 parkedTasks 移除
+        if (!parkedTasks.isEmpty()) parkedTasks.remove(task);
+        if (!unparkedTasks.isEmpty()) unparkedTasks.remove(task);
         executingTasks.remove(task); // 从执行对列中移除Task
+        suspendedTasks.remove(task);
         postRemoveTask(task);
+        releaseKey(task); // 同键下一个任务先加入对列再释放名额
+        release(task); // 释放执行名额. 熔断暂停中的任务未占用
         trigger();
     }
 
 
+    /**
+     * 占用任务的亲和键: 同一个键同时只有一个任务占用执行名额(其它同键任务排队不占名额), 保证同键按顺序执行
+     * @return false: 同键已有任务在执行, 已排队
+     */
+    private boolean acquireKey(T task) {
+        if (task.affinity == null || task.ownsKey.get()) return true; // 熔断暂停后再分发, 或 轮到的任务
+        final boolean[] owner = new boolean[1];
+        affinityTasks.compute(task.affinity, (k, q) -> {
+            if (q == null) { owner[0] = true; return new ConcurrentLinkedQueue<>(); }
+            q.offer(task);
+            return q;
+        });
+        if (owner[0]) task.ownsKey.set(true);
+        return owner[0];
+    }
+
+
+    /**
+     * 任务结束: 释放亲和键, 同键排队的下一个任务优先分发
+     */
+    private void releaseKey(T task) {
+        if (task.affinity == null || !task.ownsKey.compareAndSet(true, false)) return;
+        final List<T> next = new LinkedList<>();
+        affinityTasks.computeIfPresent(task.affinity, (k, q) -> {
+            T t = q.poll();
+            if (t == null) return null;
+            next.add(t);
+            return q;
+        });
+        for (T t : next) {
+            t.ownsKey.set(true);
+            affinityReady.offer(t);
+        }
+    }
+
+
+    /**
+     * 释放任务占用的执行名额. 分发/结束/熔断暂停并发时只释放一次
+     */
+    private void release(T task) {
+        if (task.holding.compareAndSet(true, false)) executingCnt.decrementAndGet();
+    }
+
+
+    /**
+     * 熔断暂停任务: 让出执行名额, 到期后优先分发
+     * @param task 任务
+     * @param delayMs 暂停多久(毫秒)
+     */
+    void park(T task, long delayMs) { park(task, delayMs, true); }
+
+
+    /**
+     * @param dispatch 释放名额后是否触发分发. 分发中暂停时为false
+     */
+    private void park(T task, long delayMs, boolean dispatch) {
+        parkedTasks.add(task); // 先加入再释放名额, 保证结束判断
+        executingTasks.remove(task);
+        suspendedTasks.remove(task);
+        release(task); // 到期再分发前释放: 再分发时重新占用
+        timer().schedule(() -> {
+            if (!parkedTasks.contains(task)) return; // 已被取消移除
+            unparkedTasks.offer(task);
+            parkedTasks.remove(task);
+            trigger();
+        }, delayMs, TimeUnit.MILLISECONDS);
+        if (dispatch) trigger();
+    }
+
+
+    /**
+     * 取消熔断暂停中的任务并结束. 分发时就被暂停的任务还未开始, cancel 不会结束它
+     */
+    private void cancelParked(T task) {
+        task.cancel();
+        task.reject(new CancellationException(task.logPrefix() + "cancelled"));
+    }
+
+
     /**
      * 删除一个Task 之后 做的操作
      */
@@ -228,16 +666,73 @@ public class TaskContext<T extends TaskWrapper> {
         if (Status.FailStopped == status.get() || Status.OkStopped == status.get()) return false;
         if (status.get() == Status.Stopping) {
             trigger();
-            log.info(key + " -> stopping({}). spend: {}ms, successCnt: {}, failureCnt: {}, waiting: {}, executing: {}", status.get(), System.currentTimeMillis() - startTime.getTime(), successCnt, failureCnt, waitingTasks.size(), executingTasks);
+            log.info(key + " -> stopping({}). spend: {}ms, successCnt: {}, failureCnt: {}, waiting: {}, executing: {}", status.get(), System.currentTimeMillis() - startTime.getTime(), successCnt, failureCnt, taskQueue.size(), executingTasks);
             return true;
         }
         boolean f = status.compareAndSet(Status.Running, Status.Stopping) || status.compareAndSet(Status.Paused, Status.Stopping);
+        cancelSchedules();
         log.info(key + " -> stopping: {}, status:{}", f, status.get());
         trigger();
         return f;
     }
 
 
+    /**
+     * 主动关闭执行, 最多等待 graceMs: 到期后还未结束(例: 暂停等待的执行条件不会再满足), 取消所有正在执行的任务
+     * @param graceMs 等待多久(毫秒)
+     */
+    public boolean stop(long graceMs) {
+        if (graceMs < 0) throw new IllegalArgumentException("Param graceMs must >= 0");
+        boolean f = stop();
+        if (status.get() != Status.Stopping) return f;
+        try {
+            timer().schedule(() -> {
+                if (status.get() != Status.Stopping) return;
+                log.warn(key + " -> stop timeout({}ms). cancel executing: {}", graceMs, executingTasks.size());
+                for (T task : executingTasks) task.cancel();
+                trigger();
+            }, graceMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ex) { // 时间轮已停止: 容器已结束
+            return f;
+        }
+        if (isEnd()) timer.stop(); // 和结束并发: 时间轮可能在 doStop 之后才创建
+        return f;
+    }
+
+
+    /**
+     * 立即停止: 清空等待执行对列, 并取消所有正在执行的任务 {@link TaskWrapper#cancel()}
+     * 共享对列(例: {@link FileTaskQueue}): 只清空当前进程已领取的任务, 其它进程的任务不受影响
+     * @return 未执行的任务. 共享对列中的这些任务在容器结束时归还到共享对列, 不要重新添加
+     */
+    public List<T> stopNow() {
+        final List<T> drained = new LinkedList<>();
+        if (Status.FailStopped == status.get() || Status.OkStopped == status.get()) return drained;
+        boolean f = status.compareAndSet(Status.Running, Status.Stopping) || status.compareAndSet(Status.Paused, Status.Stopping) || status.compareAndSet(Status.Ready, Status.Stopping);
+        cancelSchedules();
+        clearSources(); // 任务源中未取的任务不返回
+        drained.addAll(taskQueue.drainLocal());
+        for (T task = unparkedTasks.poll(); task != null; task = unparkedTasks.poll()) drained.add(task);
+        for (T task = affinityReady.poll(); task != null; task = affinityReady.poll()) drained.add(task);
+        for (Queue<T> q : affinityTasks.values()) {
+            for (T task = q.poll(); task != null; task = q.poll()) drained.add(task);
+        }
+        for (T task : parkedTasks) { if (parkedTasks.remove(task)) drained.add(task); }
+        for (T task : executingTasks) task.cancel();
+        log.info(key + " -> stopNow: {}, status:{}, drained: {}", f, status.get(), drained.size());
+        trigger();
+        return drained;
+    }
+
+
+    /**
+     * 取消所有定时任务
+     */
+    protected void cancelSchedules() {
+        for (Schedule<T> s : schedules) s.cancel();
+    }
+
+
     /**
      * 暂停
      */
@@ -280,13 +775,30 @@ public class TaskContext<T extends TaskWrapper> {
     /**
      * 向当前容器中的 线程池 中 添加任务
      */
-    public final void exec(final Runnable fn) {
-        final Runnable fnn = () -> {
+    public final void exec(final Runnable fn) { exec(null, fn); }
+
+
+    /**
+     * 按亲和键执行. 执行器为 {@link LaneExecutor} 时, 相同亲和键的函数在同一条道上按顺序执行
+     * @param affinity 亲和键. null: 无亲和
+     * @param fn 函数
+     */
+    public final void exec(final Object affinity, final Runnable fn) {
+        final Watchdog w = watchdog;
+        final Runnable fnn = w == null ? () -> {
             try { fn.run(); } catch (Exception ex) {
                 log.error("", ex);
             }
+        } : () -> {
+            w.enter();
+            try { fn.run(); } catch (Exception ex) {
+                log.error("", ex);
+            } finally {
+                w.exit();
+            }
         };
         if (executor == null || executor.isShutdown()) fnn.run();
+        else if (affinity != null && executor instanceof LaneExecutor) ((LaneExecutor) executor).execute(affinity, fnn);
         else executor.execute(fnn);
     }
 
@@ -300,7 +812,7 @@ public class TaskContext<T extends TaskWrapper> {
     /**
      * 任务是否全部完成
      */
-    public boolean isComplete() { return isEnd() && waitingTasks.isEmpty() && executingTasks.isEmpty(); }
+    public boolean isComplete() { return isEnd() && !sourceDropped && sources.isEmpty() && parkedTasks.isEmpty() && unparkedTasks.isEmpty() && affinityReady.isEmpty() && affinityTasks.values().stream().allMatch(Queue::isEmpty) && taskQueue.isEmpty() && executingTasks.isEmpty(); }
 
 
     /**
@@ -339,8 +851,84 @@ public class TaskContext<T extends TaskWrapper> {
     }
 
 
+    /**
+     * 设置任务结果输出. 启动前设置
+     * 每个任务结束时在其执行线程中输出 {@link TaskResult}, 输出阻塞时不会分发新任务
+     * @param sink {@link ResultSink}
+     */
+    public TaskContext<T> setResultSink(ResultSink<T> sink) {
+        this.resultSink = sink;
+        return this;
+    }
+
+
+    /**
+     * 以迭代器拉取任务结果. 启动前调用
+     * 未消费的结果超过 capacity 时, 任务执行线程等待消费
+     * @param capacity 最多缓存多少个未消费的结果
+     * @return {@link ResultIterator} 容器结束并且结果消费完时结束迭代
+     */
+    public ResultIterator<T> results(int capacity) {
+        ResultIterator<T> it = new ResultIterator<>(capacity);
+        setResultSink(it);
+        return it;
+    }
+
+
+    /**
+     * 设置执行线程看门狗: 所有执行线程都阻塞超过 thresholdMs 并且有排队时, 增加补偿线程并输出卡住的任务/步骤/线程栈
+     * 补偿线程只支持 {@link ThreadPoolExecutor}(默认执行器), 其它执行器只输出
+     * @param thresholdMs 阻塞多久算卡住(毫秒)
+     * @param maxExtraThreads 最多增加多少个补偿线程
+     */
+    public TaskContext<T> setWatchdog(long thresholdMs, int maxExtraThreads) {
+        if (watchdog != null) watchdog.stop();
+        this.watchdog = new Watchdog(this, thresholdMs, maxExtraThreads).start();
+        return this;
+    }
+
+
+    /**
+     * 执行线程看门狗
+     */
+    public Watchdog getWatchdog() { return watchdog; }
+
+
+    /**
+     * 设置执行追踪. 容器中未单独设置追踪的任务都使用此追踪
+     * @param tracer {@link Tracer}
+     */
+    public TaskContext<T> setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+
+    /**
+     * 执行追踪
+     */
+    public Tracer getTracer() { return tracer; }
+
+
+    /**
+     * 设置等待执行对列. 默认: {@link LocalTaskQueue}
+     * 已添加的任务转移到新对列
+     * @param queue {@link TaskQueue}
+     */
+    public TaskContext<T> setTaskQueue(TaskQueue<T> queue) {
+        if (queue == null) throw new IllegalArgumentException("Param queue required");
+        if (status.get() != null) throw new RuntimeException(key + " already started. Cannot change task queue");
+        if (queue.isShared() && schedules.stream().anyMatch(s -> s.period > 0 && !s.fixedRate)) throw new RuntimeException(key + " fixed delay schedule not supported with shared task queue: " + queue);
+        TaskQueue<T> old = this.taskQueue;
+        this.taskQueue = queue;
+        for (T task = old.poll(); task != null; task = old.poll()) queue.offer(task);
+        queue.attach(this);
+        return this;
+    }
+
+
     @Override
     public String toString() {
-        return key + " -> [successCnt: " + successCnt + ", failureCnt: " + failureCnt + " , spend: " + (System.currentTimeMillis() - startTime.getTime()) + "ms, waiting: " + waitingTasks.size() + ", executing: " + executingTasks.size() + "]";
+        return key + " -> [successCnt: " + successCnt + ", failureCnt: " + failureCnt + " , spend: " + (System.currentTimeMillis() - startTime.getTime()) + "ms, waiting: " + taskQueue.size() + ", executing: " + executingTasks.size() + "]";
     }
 }
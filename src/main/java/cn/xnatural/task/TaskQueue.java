@@ -0,0 +1,83 @@
+package cn.xnatural.task;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * {@link TaskContext} 的等待执行对列
+ * 默认: {@link LocalTaskQueue}, 多进程共享: {@link FileTaskQueue}
+ * @param <T> Task 类型
+ */
+public interface TaskQueue<T extends TaskWrapper> {
+
+    /**
+     * 入队
+     * @param task {@link TaskWrapper}
+     * @return true: 入队成功
+     */
+    boolean offer(T task);
+
+
+    /**
+     * 取出一个任务
+     * @return null: 当前无可执行的任务
+     */
+    T poll();
+
+
+    /**
+     * 任务结束(成功/失败)确认. 有租约的对列据此释放租约
+     * @param task 由 {@link #poll()} 取出的任务
+     */
+    default void ack(T task) {}
+
+
+    /**
+     * 任务未执行完(停止时被取消)归还. 有租约的对列据此把任务交还给其它进程
+     * @param task 由 {@link #poll()} 取出的任务
+     */
+    default void release(T task) {}
+
+
+    /**
+     * 取出当前进程中还未执行的任务. {@link TaskContext#stopNow()} 时调用
+     * 共享对列只取出当前进程已领取的任务, 不再领取新任务
+     */
+    default List<T> drainLocal() {
+        final List<T> ls = new LinkedList<>();
+        for (T task = poll(); task != null; task = poll()) ls.add(task);
+        return ls;
+    }
+
+
+    /**
+     * 是否没有等待执行的任务
+     */
+    boolean isEmpty();
+
+
+    /**
+     * 等待执行的任务个数
+     */
+    int size();
+
+
+    /**
+     * 是否多进程共享: 取出的是解码后的新任务对象(可能在其它进程中执行)
+     * 共享对列不支持按任务对象跟踪结束的功能(例: {@link TaskContext#scheduleWithFixedDelay})
+     */
+    default boolean isShared() { return false; }
+
+
+    /**
+     * 绑定到容器. {@link TaskContext#setTaskQueue(TaskQueue)} 时调用
+     * 对列中有了(外部)新任务时可通过 {@link TaskContext#trigger()} 触发执行
+     */
+    default void attach(TaskContext<T> ctx) {}
+
+
+    /**
+     * 容器结束时关闭
+     */
+    default void close() {}
+}
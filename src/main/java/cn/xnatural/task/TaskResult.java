@@ -0,0 +1,53 @@
+package cn.xnatural.task;
+
+/**
+ * 任务结束时的输出: 结果 或 异常
+ * {@link TaskContext#setResultSink(ResultSink)}
+ * @param <T> Task 类型
+ */
+public class TaskResult<T extends TaskWrapper> {
+    protected final T         task;
+    protected final Object    result;
+    protected final Throwable error;
+
+
+    public TaskResult(T task, Object result, Throwable error) {
+        this.task = task; this.result = result; this.error = error;
+    }
+
+
+    /**
+     * 已结束的任务
+     */
+    public T getTask() { return task; }
+
+
+    /**
+     * 任务标识key
+     */
+    public Object getKey() { return task.getKey(); }
+
+
+    /**
+     * 任务结果: 最后一个步骤的结果
+     */
+    public Object getResult() { return result; }
+
+
+    /**
+     * 失败的异常. 成功为null
+     */
+    public Throwable getError() { return error; }
+
+
+    /**
+     * 是否成功结束
+     */
+    public boolean isSuccess() { return task.isSuccessEnd(); }
+
+
+    @Override
+    public String toString() {
+        return "TaskResult[key: " + getKey() + ", success: " + isSuccess() + ", result: " + result + (error == null ? "" : ", error: " + error) + "]";
+    }
+}
@@ -6,11 +6,11 @@ import org.slf4j.LoggerFactory;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
@@ -41,11 +41,60 @@ public class TaskWrapper {
     /**
      * 任务的步骤执行链
      */
-    protected final List<Step>                     steps  = new LinkedList<>();
+    protected final List<Step>                     steps  = new ArrayList<>(4);
     /**
      * 用于并行步骤执行
      */
     protected ExecutorService executor;
+    /**
+     * 结束时的结果. 输出到容器 {@link TaskContext#resultSink} 后释放
+     */
+    protected              Object                  output;
+    /**
+     * 失败的异常
+     */
+    protected              Throwable               error;
+    /**
+     * 紧凑模式: 步骤结果被下一个步骤使用后释放 {@link #compact()}
+     */
+    protected              boolean                 compact;
+    /**
+     * 是否有步骤设置了熔断器 {@link #breaker(CircuitBreaker, boolean)}
+     */
+    protected              boolean                 hasBreaker;
+    /**
+     * 亲和键(可选). 执行器为 {@link LaneExecutor} 时, 相同亲和键的任务固定在同一条道上按顺序执行
+     */
+    protected              Object                  affinity;
+    /**
+     * 执行追踪. 未设置时使用所属容器的 {@link TaskContext#tracer}
+     */
+    protected              Tracer                  tracer;
+    /**
+     * 是否已取消 {@link #cancel()}
+     */
+    private volatile boolean                       cancelled;
+    /**
+     * 正在执行{@link #trigger(Object)}的线程. 取消时中断
+     */
+    private                Thread                  runner;
+    private final          Object                  runnerLock = new Object();
+    /**
+     * 正在执行的步骤. 用于诊断 {@link Watchdog}
+     */
+    volatile               Step                    current;
+    /**
+     * 是否占用着所属容器的执行名额: 分发时占用, 结束 或 熔断暂停时释放
+     */
+    final                  AtomicBoolean           holding  = new AtomicBoolean(false);
+    /**
+     * 是否占用着亲和键: 同键同时只有一个任务执行 {@link TaskContext#affinityTasks}
+     */
+    final                  AtomicBoolean           ownsKey  = new AtomicBoolean(false);
+    /**
+     * 保证只结束一次 {@link #finish()}
+     */
+    private final          AtomicBoolean           finished = new AtomicBoolean(false);
 
 
     public TaskWrapper(Object key) { if (key == null) throw new NullPointerException("key must not be null"); this.key = key; }
@@ -124,6 +173,7 @@ public class TaskWrapper {
 
     /**
      * 并行多个步骤
+     * 任一函数失败则取消其它函数(中断执行线程, {@link Step#isCancelled()} 为true), 当前步骤立即失败
      * @param condition 执行条件
      * @param steps 步骤函数
      * @param <I> 入参类型
@@ -133,19 +183,7 @@ public class TaskWrapper {
     public <I, R> TaskWrapper parallel(Predicate<Step> condition, BiFunction<I, Step, R>... steps) {
         this.steps.add(
                 new Step<I, List<R>>(this, (i, me) -> {
-                    final CountDownLatch latch = new CountDownLatch(steps.length);
-                    final List<R> results = new ArrayList<>(steps.length);
-                    for (int j = 0; j < steps.length; j++) {
-                        BiFunction<I, Step, R> step = steps[j];
-                        int finalJ = j;
-                        results.add(null);
-                        exec(() -> {
-                            results.set(finalJ, step.apply(i, me)); // 返回的结果list 和 入参一一对应
-                            latch.countDown();
-                        });
-                    }
-                    try { latch.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
-                    return results;
+                    return new Branches<I, R>(me, steps).launch(i).await().results(); // 返回的结果list 和 入参一一对应
                 }, condition)
         );
         return this;
@@ -161,6 +199,138 @@ public class TaskWrapper {
      */
     public <I, R> TaskWrapper parallel(BiFunction<I, Step, R>... steps) { return parallel(null, steps); }
 
+
+    /**
+     * 并行多个步骤, 取最先成功的结果
+     * 有一个函数成功则取消其它函数, 全部失败则当前步骤失败
+     * @param condition 执行条件
+     * @param steps 步骤函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper anyOf(Predicate<Step> condition, BiFunction<I, Step, R>... steps) {
+        if (steps.length < 1) throw new IllegalArgumentException("Param steps required");
+        this.steps.add(
+                new Step<I, R>(this, (i, me) -> {
+                    return new Branches<I, R>(me, 1, steps).launch(i).await().completed().get(0);
+                }, condition)
+        );
+        return this;
+    }
+
+
+    /**
+     * 并行多个步骤, 取最先成功的结果
+     * @param steps 步骤函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper anyOf(BiFunction<I, Step, R>... steps) { return anyOf(null, steps); }
+
+
+    /**
+     * 并行多个步骤, 等待其中 n 个成功
+     * 成功数达到 n 则取消其它函数, 失败数使成功数不可能达到 n 时当前步骤失败
+     * @param n 需要成功的个数
+     * @param condition 执行条件
+     * @param steps 步骤函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper} 步骤结果为成功的n个结果, 按完成先后顺序
+     */
+    public <I, R> TaskWrapper quorum(int n, Predicate<Step> condition, BiFunction<I, Step, R>... steps) {
+        if (n < 1 || n > steps.length) throw new IllegalArgumentException("Param n must in [1, " + steps.length + "]");
+        this.steps.add(
+                new Step<I, List<R>>(this, (i, me) -> {
+                    return new Branches<I, R>(me, n, steps).launch(i).await().completed();
+                }, condition)
+        );
+        return this;
+    }
+
+
+    /**
+     * 并行多个步骤, 等待其中 n 个成功
+     * @param n 需要成功的个数
+     * @param steps 步骤函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper quorum(int n, BiFunction<I, Step, R>... steps) { return quorum(n, null, steps); }
+
+
+    /**
+     * 对冲执行步骤: 执行超过 delay 还未完成, 则再并行执行一次, 取先成功的结果并取消另一个
+     * 第一次执行在 delay 内失败, 则到 delay 时再执行一次
+     * @param delay 对冲延迟(毫秒)
+     * @param fn 执行逻辑函数
+     * @param condition 执行条件
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper hedge(long delay, BiFunction<I, Step, R> fn, Predicate<Step> condition) {
+        if (delay < 0) throw new IllegalArgumentException("Param delay must >= 0");
+        return hedge(fn, condition, null, delay);
+    }
+
+
+    /**
+     * 对冲执行步骤
+     * @param delay 对冲延迟(毫秒)
+     * @param fn 执行逻辑函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper hedge(long delay, BiFunction<I, Step, R> fn) { return hedge(delay, fn, null); }
+
+
+    /**
+     * 对冲执行步骤: 延迟阈值取记录的历史耗时百分位 {@link LatencyRecorder#threshold()}
+     * @param latency 耗时记录. 一般同类步骤共用一个
+     * @param fn 执行逻辑函数
+     * @param condition 执行条件
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper hedge(LatencyRecorder latency, BiFunction<I, Step, R> fn, Predicate<Step> condition) {
+        if (latency == null) throw new IllegalArgumentException("Param latency required");
+        return hedge(fn, condition, latency, -1);
+    }
+
+
+    /**
+     * 对冲执行步骤: 延迟阈值取记录的历史耗时百分位 {@link LatencyRecorder#threshold()}
+     * @param latency 耗时记录. 一般同类步骤共用一个
+     * @param fn 执行逻辑函数
+     * @param <I> 入参类型
+     * @param <R> 输出结果类型
+     * @return {@link TaskWrapper}
+     */
+    public <I, R> TaskWrapper hedge(LatencyRecorder latency, BiFunction<I, Step, R> fn) { return hedge(latency, fn, null); }
+
+
+    private <I, R> TaskWrapper hedge(BiFunction<I, Step, R> fn, Predicate<Step> condition, LatencyRecorder latency, long delay) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        this.steps.add(
+                new Step<I, R>(this, (i, me) -> {
+                    final Branches<I, R> branches = new Branches<I, R>(me, 1, new BiFunction[]{fn, fn}).latency(latency);
+                    if (!branches.launch(0, i).await(latency == null ? delay : latency.threshold(), TimeUnit.MILLISECONDS)) {
+                        me.debug("hedge step{}", me.num);
+                        branches.launch(1, i);
+                    }
+                    return branches.await().completed().get(0);
+                }, condition)
+        );
+        return this;
+    }
+
+
     /**
      * 执行任务
      * @return 任务结果
@@ -184,8 +354,8 @@ public class TaskWrapper {
             log.warn(logPrefix() + "already paused"); return null;
         }
         status.compareAndSet(null, Status.Ready);
-        this.startTime = new Date();
-        log.debug(logPrefix() + "starting");
+        if (this.startTime == null) this.startTime = new Date(); // 熔断暂停后再次执行时不重置
+        if (log.isDebugEnabled()) log.debug(logPrefix() + "starting");
         if (steps.isEmpty()) log.warn(logPrefix() + "not found steps");
         return trigger(input);
     }
@@ -198,38 +368,183 @@ public class TaskWrapper {
      */
     protected final Object trigger(Object input) {
         if (!status.compareAndSet(Status.Ready, Status.Running)) return null; // 保证同时只有一个线程执行任务
+        synchronized (runnerLock) { runner = Thread.currentThread(); }
+        final Tracer tr = tracer();
+        if (tr != null) tr.begin(Tracer.TASK, key, -1);
         Object result = input;
-        out: for (Step step : steps) {
-            if (Status.Paused == status.get()) break; // 暂停
-            if (step.isCompleted()) { result = step.getResult(); continue; }
-            try {
-                while (true) { // 循环执行直到成功
-                    if (step.condition != null) {
-                        synchronized (this) {
-                            if (!step.condition.test(step)) { // 不满足执行条件, 暂停等待恢复执行
-                                status.set(Status.Paused); break out;
+        // 熔断暂停多久(毫秒)
+        long parkMs = 0;
+        try {
+            retry: while (true) {
+                result = input;
+                boolean paused = false;
+                Step prev = null;
+                out: for (int idx = 0; idx < steps.size(); idx++) {
+                    final Step step = steps.get(idx);
+                    if (Status.Paused == status.get()) { // 暂停
+                        paused = true; break;
+                    }
+                    if (step.isCompleted()) { result = step.getResult(); prev = step; continue; }
+                    if (cancelled) { status.set(Status.FailStopped); break; } // 已取消
+                    try {
+                        while (true) { // 循环执行直到成功
+                            if (step.condition != null) {
+                                synchronized (this) {
+                                    if (!step.condition.test(step)) { // 不满足执行条件, 暂停等待恢复执行
+                                        status.set(Status.Paused);
+                                        paused = true; break out;
+                                    }
+                                }
+                            }
+                            if (Status.Paused == status.get()) {
+                                paused = true; break out;
+                            }
+                            final CircuitBreaker cb = step.breaker;
+                            if (cb != null && !cb.tryAcquire()) { // 熔断: 暂停到可以重试 或 立即失败
+                                if (step.park && ctx != null) { parkMs = Math.max(1, cb.retryAfter()); break out; }
+                                throw new CircuitBreaker.OpenException(logPrefix() + "Step" + step.num + " rejected. " + cb);
+                            }
+                            final long begin = cb == null ? 0 : System.nanoTime();
+                            Object r;
+                            current = step;
+                            try {
+                                if (tr == null) r = step.apply(result);
+                                else {
+                                    tr.begin(Tracer.STEP, key, step.num);
+                                    try { r = step.apply(result); } finally { tr.end(Tracer.STEP, key, step.num); }
+                                }
+                            } catch (RuntimeException ex) {
+                                if (cb != null && !cancelled) cb.onFailure(System.nanoTime() - begin);
+                                throw ex;
+                            }
+                            current = null;
+                            if (cb != null) { // 需要重试的结果也算失败
+                                if (step.isCompleted()) cb.onSuccess(System.nanoTime() - begin);
+                                else cb.onFailure(System.nanoTime() - begin);
+                            }
+                            if (step.isCompleted()) {
+                                result = r;
+                                if (compact && prev != null) prev.release(); // 上一个步骤的结果已被使用
+                                prev = step;
+                                break;
                             }
                         }
+                    } catch (Exception ex) {
+                        if (cancelled) log.warn(logPrefix() + "Step" + step.num + " cancelled");
+                        else log.error(logPrefix() + "Step error", ex);
+                        error = ex;
+                        status.set(Status.FailStopped);
+                        break;
                     }
-                    if (Status.Paused == status.get()) break out;
-                    Object r = step.apply(result);
-                    if (step.isCompleted()) {result = r; break;}
                 }
-            } catch (Exception ex) {
-                log.error(logPrefix() + "Step error", ex);
-                status.set(Status.FailStopped);
+                if (paused && tr != null) tr.instant(Tracer.PAUSE, key, -1);
+                synchronized (runnerLock) {
+                    // 暂停后, 退出前又被恢复 {@link #resume()}: 继续执行
+                    if (paused && Status.Running == status.get()) continue retry;
+                    runner = null;
+                }
+                break;
             }
+        } finally {
+            current = null;
+            synchronized (runnerLock) {
+                runner = null;
+                if (cancelled) Thread.interrupted(); // 清除取消时设置的中断标志
+            }
+            if (tr != null) tr.end(Tracer.TASK, key, -1);
+        }
+        // 全部完成则结束任务. 已取消的任务结果作废
+        if (cancelled) status.set(Status.FailStopped);
+        else if (parkMs > 0 && Status.Running == status.get() && status.compareAndSet(Status.Running, Status.Ready)) { // 熔断暂停: 让出执行名额
+            if (tr != null) tr.instant(Tracer.PAUSE, key, -1);
+            log.warn(logPrefix() + "parked {}ms by circuit breaker", parkMs);
+            ctx.park(this, parkMs);
+            return result;
         }
-        // 全部完成则结束任务
-        if (Status.FailStopped != status.get() && steps.stream().allMatch(Step::isCompleted)) status.set(Status.OkStopped);
+        else if (Status.FailStopped != status.get() && steps.stream().allMatch(Step::isCompleted)) status.set(Status.OkStopped);
         if (Status.FailStopped == status.get() || Status.OkStopped == status.get()) {
-            log.info(logPrefix() + "finished({}). spend: {}ms", status.get(), System.currentTimeMillis() - startTime.getTime());
-            if (ctx != null) ctx.removeTask(this);
+            if (Status.OkStopped == status.get()) output = result;
+            if (compact) { for (Step step : steps) step.release(); }
+            finish();
         }
         return result;
     }
 
 
+    /**
+     * 任务结束: 从所属容器中移除
+     */
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) return;
+        if (cancelled && error == null) error = new CancellationException(logPrefix() + "cancelled");
+        final Tracer tr = tracer();
+        if (tr != null) tr.instant(Tracer.FINISH, key, -1);
+        if (log.isInfoEnabled()) {
+            log.info(logPrefix() + "finished({}). spend: {}ms", status.get(), startTime == null ? 0 : System.currentTimeMillis() - startTime.getTime());
+        }
+        if (ctx != null) ctx.removeTask(this);
+    }
+
+
+    /**
+     * 取消任务
+     * 1. 正在执行: 中断执行线程, 当前步骤结束后不再执行后续步骤, 步骤函数可通过 {@link Step#isCancelled()} 提前退出
+     * 2. 暂停中/未开始: 直接失败结束
+     * @return false: 任务已结束
+     */
+    public boolean cancel() {
+        if (Status.FailStopped == status.get() || Status.OkStopped == status.get()) return false;
+        cancelled = true;
+        synchronized (runnerLock) {
+            if (runner != null && runner != Thread.currentThread()) runner.interrupt();
+        }
+        if (status.compareAndSet(Status.Paused, Status.FailStopped) || status.compareAndSet(Status.Ready, Status.FailStopped)) finish();
+        return true;
+    }
+
+
+    /**
+     * 是否已取消
+     */
+    public boolean isCancelled() { return cancelled; }
+
+
+    /**
+     * 下一个要执行的步骤, 如果它的熔断器已打开
+     * @return null: 未打开 或 没有设置熔断器
+     */
+    Step brokenStep() {
+        if (!hasBreaker) return null;
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.isCompleted()) continue;
+            return step.breaker != null && step.breaker.isOpen() ? step : null;
+        }
+        return null;
+    }
+
+
+    /**
+     * 不执行, 直接失败结束. 例: 熔断器打开时丢弃
+     * @param ex 失败原因
+     */
+    void reject(Throwable ex) {
+        if (Status.FailStopped != status.get() && Status.OkStopped != status.get()) {
+            if (error == null) error = ex;
+            status.set(Status.FailStopped); // 正在执行的线程在下一步骤前退出
+        }
+        finish(); // 已结束的不会重复移除
+    }
+
+
+    /**
+     * 正在执行任务的线程
+     */
+    Thread runner() {
+        synchronized (runnerLock) { return runner; }
+    }
+
+
     /**
      * 暂停. 任务会执行完当前正在执行的步骤后暂停执行下一个{@link Step}
      */
@@ -246,8 +561,17 @@ public class TaskWrapper {
     public synchronized boolean resume() {
         if (status.get() == Status.Running) return true;
         if (Status.FailStopped == status.get() || Status.OkStopped == status.get()) return false;
+        final Tracer tr = tracer();
+        synchronized (runnerLock) {
+            // 执行线程还未退出: 恢复为运行状态, 由执行线程继续执行. 避免两个线程同时执行同一任务
+            if (runner != null && status.compareAndSet(Status.Paused, Status.Running)) {
+                if (tr != null) tr.instant(Tracer.RESUME, key, -1);
+                return true;
+            }
+        }
         if (status.compareAndSet(Status.Paused, Status.Ready)) {
-            exec(() -> trigger(null)); return true;
+            if (tr != null) tr.instant(Tracer.RESUME, key, -1);
+            exec(affinity, () -> trigger(null)); return true;
         }
         return false;
     }
@@ -262,13 +586,94 @@ public class TaskWrapper {
     public TaskWrapper executor(ExecutorService executor) { this.executor = executor; return this; }
 
 
+    /**
+     * 紧凑模式: 每个步骤的结果被下一个步骤使用后即释放, 任务结束时释放所有步骤结果(结果仍输出到 {@link TaskContext#resultSink})
+     * 适合步骤中间结果大(例: 页面内容)并且同时执行的任务多. 需要后续使用的步骤结果用 {@link #retain()} 保留
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper compact() { this.compact = true; return this; }
+
+
+    /**
+     * 保留最后添加的步骤的结果: 紧凑模式下不释放
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper retain() {
+        if (steps.isEmpty()) throw new IllegalArgumentException("Not found steps");
+        steps.get(steps.size() - 1).retain();
+        return this;
+    }
+
+
+    /**
+     * 最后添加的步骤使用熔断器: 统计该步骤的失败率/耗时, 熔断器打开时不执行该步骤
+     * 在容器中, 下一步骤被熔断的等待任务也不分发: 按 park 暂停 或 丢弃
+     * @param breaker 熔断器. 一般调用同一个下游依赖的步骤共用一个
+     * @param park true: 暂停任务(让出执行名额), 熔断器可以重试时再执行; false: 立即失败({@link CircuitBreaker.OpenException})
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper breaker(CircuitBreaker breaker, boolean park) {
+        if (breaker == null) throw new IllegalArgumentException("Param breaker required");
+        if (steps.isEmpty()) throw new IllegalArgumentException("Not found steps");
+        steps.get(steps.size() - 1).breaker(breaker, park);
+        hasBreaker = true;
+        return this;
+    }
+
+
+    /**
+     * 最后添加的步骤使用熔断器. 打开时立即失败
+     * @param breaker 熔断器
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper breaker(CircuitBreaker breaker) { return breaker(breaker, false); }
+
+
+    /**
+     * 设置亲和键: 例如按域名, 使同一域名的任务(包括暂停后恢复)按添加顺序串行执行
+     * 在容器中同键同时只有一个任务占用执行名额, 其它同键任务排队不占名额(不影响其它键的任务分发)
+     * 执行器为 {@link LaneExecutor} 时还固定在同一个线程上执行
+     * @param affinity 亲和键
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper affinity(Object affinity) { this.affinity = affinity; return this; }
+
+
+    /**
+     * 亲和键
+     */
+    public Object getAffinity() { return affinity; }
+
+
+    /**
+     * 设置执行追踪
+     * @param tracer {@link Tracer}
+     * @return {@link TaskWrapper}
+     */
+    public TaskWrapper tracer(Tracer tracer) { this.tracer = tracer; return this; }
+
+
+    /**
+     * 当前执行追踪. 未设置则使用所属容器的
+     */
+    protected Tracer tracer() { return tracer != null ? tracer : (ctx == null ? null : ctx.tracer); }
+
+
     /**
      * 任务执行步骤函数
      * @param fn 执行函数
      */
-    protected void exec(Runnable fn) {
+    protected void exec(Runnable fn) { exec(null, fn); }
+
+
+    /**
+     * 按亲和键执行
+     * @param affinity 亲和键. null: 无亲和
+     * @param fn 执行函数
+     */
+    protected void exec(Object affinity, Runnable fn) {
         if (ctx() != null) {
-            ctx().exec(fn);
+            ctx().exec(affinity, fn);
         }
         else {
             final Runnable fnn = () -> {
@@ -277,6 +682,7 @@ public class TaskWrapper {
                 }
             };
             if (executor == null || executor.isShutdown()) fnn.run();
+            else if (affinity != null && executor instanceof LaneExecutor) ((LaneExecutor) executor).execute(affinity, fnn);
             else executor.execute(fnn);
         }
     }
@@ -301,6 +707,12 @@ public class TaskWrapper {
     boolean isSuccessEnd() { return status.get() == Status.OkStopped; }
 
 
+    /**
+     * 是否已结束
+     */
+    boolean isEnd() { return status.get() == Status.OkStopped || status.get() == Status.FailStopped; }
+
+
     /**
      * 任务状态
      */
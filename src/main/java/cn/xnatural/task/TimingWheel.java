@@ -0,0 +1,213 @@
+package cn.xnatural.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 哈希时间轮: 大量定时项的添加/取消/到期都是 O(1)
+ * 1. 一圈 {@link #wheel} 个槽, 每 {@link #tickNanos} 前进一格, 执行当前槽中到期的定时项
+ * 2. 超过一圈的定时项记录剩余圈数 {@link Timeout#rounds}, 每经过一次减一
+ * 3. 添加先进入无锁对列 {@link #pending}, 由时间轮线程在下一格放入槽中; 取消只做标记, 经过时移除
+ *
+ * 到期函数在时间轮线程中执行, 应尽量轻(例: 添加任务), 耗时操作提交到线程池
+ * 精度为一格时长, 到期时间不会提前
+ */
+public class TimingWheel {
+    protected static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+    private static final   int    INIT = 0, STARTED = 1, STOPPED = 2;
+    /**
+     * 一格时长(纳秒)
+     */
+    protected final        long                  tickNanos;
+    /**
+     * 槽. 只有时间轮线程访问
+     */
+    protected final        List<Timeout>[]       wheel;
+    protected final        int                   mask;
+    /**
+     * 新添加还未放入槽中的定时项
+     */
+    protected final        Queue<Timeout>        pending = new ConcurrentLinkedQueue<>();
+    /**
+     * 未到期的定时项个数
+     */
+    protected final        AtomicInteger         size    = new AtomicInteger();
+    protected final        String                name;
+    private final          AtomicInteger         state   = new AtomicInteger(INIT);
+    private final          CountDownLatch        started = new CountDownLatch(1);
+    private volatile       long                  startNanos;
+    private                Thread                worker;
+    // 已前进多少格. 只有时间轮线程访问
+    private                long                  tick;
+
+
+    /**
+     * @param name 线程名
+     * @param tick 一格时长
+     * @param unit 时间单位
+     * @param wheelSize 一圈多少格. 取不小于它的2的幂
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0) throw new IllegalArgumentException("Param tick must > 0");
+        if (wheelSize < 1 || wheelSize > (1 << 24)) throw new IllegalArgumentException("Param wheelSize must in [1, 2^24]");
+        this.tickNanos = Math.max(unit.toNanos(tick), TimeUnit.MILLISECONDS.toNanos(1));
+        int n = 1;
+        while (n < wheelSize) n <<= 1;
+        this.wheel = new List[n];
+        for (int i = 0; i < n; i++) wheel[i] = new ArrayList<>(4);
+        this.mask = n - 1;
+        this.name = name == null ? "TimingWheel" : name;
+    }
+    public TimingWheel(String name) { this(name, 10, TimeUnit.MILLISECONDS, 512); }
+
+
+    /**
+     * 添加定时项
+     * @param fn 到期函数
+     * @param delay 延迟
+     * @param unit 时间单位
+     * @return {@link Timeout} 可取消
+     */
+    public Timeout schedule(Runnable fn, long delay, TimeUnit unit) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        start();
+        // 到期时间饱和到 Long.MAX_VALUE: 超大延迟(例: Long.MAX_VALUE 毫秒)相加溢出后会变成立即到期
+        final long elapsed = System.nanoTime() - startNanos, d = unit.toNanos(Math.max(0, delay));
+        Timeout t = new Timeout(fn, d > Long.MAX_VALUE - elapsed ? Long.MAX_VALUE : elapsed + d);
+        size.incrementAndGet();
+        pending.offer(t);
+        if (state.get() == STOPPED && t.cancel()) throw new RuntimeException(name + " already stopped");
+        return t;
+    }
+
+
+    /**
+     * 启动时间轮线程. 第一次添加时自动启动
+     */
+    protected void start() {
+        if (state.get() == INIT && state.compareAndSet(INIT, STARTED)) {
+            worker = new Thread(this::work, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        if (state.get() == STOPPED) throw new RuntimeException(name + " already stopped");
+        try { started.await(); } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(name + " start interrupted");
+        }
+    }
+
+
+    /**
+     * 停止. 未到期的定时项不再执行
+     */
+    public void stop() {
+        if (state.getAndSet(STOPPED) == STARTED) {
+            Thread t = worker;
+            if (t != null && t != Thread.currentThread()) t.interrupt();
+        }
+        started.countDown();
+    }
+
+
+    /**
+     * 未到期的定时项个数
+     */
+    public int size() { return size.get(); }
+
+
+    private void work() {
+        startNanos = System.nanoTime();
+        started.countDown();
+        while (state.get() == STARTED) {
+            // 等待到下一格
+            long deadline = tickNanos * (tick + 1);
+            long now;
+            while ((now = System.nanoTime() - startNanos) < deadline) {
+                try { TimeUnit.NANOSECONDS.sleep(deadline - now); } catch (InterruptedException e) {
+                    if (state.get() != STARTED) return;
+                }
+            }
+            transfer();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+
+    /**
+     * 新添加的定时项放入槽中
+     */
+    private void transfer() {
+        // 每格最多转移一定数量, 避免大量添加时到期执行被推迟
+        for (int i = 0; i < 100000; i++) {
+            Timeout t = pending.poll();
+            if (t == null) break;
+            if (t.state == Timeout.CANCELLED) { size.decrementAndGet(); continue; }
+            long calc = t.deadline / tickNanos;
+            t.rounds = (calc - tick) / wheel.length;
+            wheel[(int) (Math.max(calc, tick) & mask)].add(t);
+        }
+    }
+
+
+    /**
+     * 执行槽中到期的定时项, 移除已取消的, 其余圈数减一
+     */
+    private void expire(List<Timeout> bucket) {
+        int keep = 0;
+        for (int i = 0, n = bucket.size(); i < n; i++) {
+            Timeout t = bucket.get(i);
+            if (t.state == Timeout.CANCELLED) { size.decrementAndGet(); continue; }
+            if (t.rounds > 0) { t.rounds--; bucket.set(keep++, t); continue; }
+            size.decrementAndGet();
+            if (!Timeout.STATE.compareAndSet(t, Timeout.INIT, Timeout.EXPIRED)) continue;
+            try { t.fn.run(); } catch (Throwable ex) {
+                log.error(name + " -> timeout fn error", ex);
+            }
+        }
+        for (int i = bucket.size() - 1; i >= keep; i--) bucket.remove(i);
+    }
+
+
+    @Override
+    public String toString() {
+        return name + "[tick: " + TimeUnit.NANOSECONDS.toMillis(tickNanos) + "ms, wheel: " + wheel.length + ", size: " + size.get() + "]";
+    }
+
+
+    /**
+     * 定时项
+     */
+    public static class Timeout {
+        private static final int INIT = 0, CANCELLED = 1, EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        private final Runnable fn;
+        // 到期时间(相对时间轮启动, 纳秒)
+        private final long     deadline;
+        // 剩余圈数. 只有时间轮线程访问
+        private long           rounds;
+        private volatile int   state;
+
+        Timeout(Runnable fn, long deadline) { this.fn = fn; this.deadline = deadline; }
+
+        /**
+         * 取消
+         * @return false: 已到期执行 或 已取消
+         */
+        public boolean cancel() { return STATE.compareAndSet(this, INIT, CANCELLED); }
+
+        public boolean isCancelled() { return state == CANCELLED; }
+
+        public boolean isExpired() { return state == EXPIRED; }
+    }
+}
@@ -0,0 +1,235 @@
+package cn.xnatural.task;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 执行追踪(可选): 记录任务/步骤的开始结束, 暂停恢复, 入队/分发, 并行分支等事件
+ * 每个线程一个环形缓冲(只有本线程写, 无锁), 满了覆盖最早的事件
+ * 线程结束后它的缓冲由新线程复用(已记录的事件保留到被覆盖), 缓冲个数不超过同时存活的线程数
+ * 导出为 Chrome trace-event JSON, 可用 chrome://tracing 或 https://ui.perfetto.dev 查看时间线
+ *
+ * 用法: {@link TaskContext#setTracer(Tracer)} 或 {@link TaskWrapper#tracer(Tracer)}, 结束后 {@link #export(Path)}
+ */
+public class Tracer {
+    static final char BEGIN = 'B', END = 'E', INSTANT = 'i';
+    // 事件类型
+    static final String TASK = "task", STEP = "step", BRANCH = "branch", ENQUEUE = "enqueue", DISPATCH = "dispatch", PAUSE = "pause", RESUME = "resume", FINISH = "finish";
+    /**
+     * 每个线程缓冲的事件个数
+     */
+    protected final int                capacity;
+    /**
+     * 所有线程的缓冲
+     */
+    protected final Queue<Ring>        rings = new ConcurrentLinkedQueue<>();
+    protected final ThreadLocal<Ring>  local = ThreadLocal.withInitial(() -> {
+        final Thread t = Thread.currentThread();
+        for (Ring r : rings) {
+            if (r.reuse(t)) return r; // 复用已结束线程的缓冲
+        }
+        Ring r = new Ring(t, capacity());
+        rings.add(r);
+        return r;
+    });
+    /**
+     * 时间起点
+     */
+    protected final long               baseNanos = System.nanoTime();
+
+
+    /**
+     * @param capacity 每个线程缓冲的事件个数
+     */
+    public Tracer(int capacity) {
+        if (capacity < 16) throw new IllegalArgumentException("Param capacity must >= 16");
+        this.capacity = capacity;
+    }
+    public Tracer() { this(1024 * 16); }
+
+
+    private int capacity() { return capacity; }
+
+
+    /**
+     * 区间开始
+     * @param type 事件类型
+     * @param key 任务标识
+     * @param num 步骤序号. 无则-1
+     */
+    public void begin(String type, Object key, int num) { local.get().add(BEGIN, type, key, num, System.nanoTime()); }
+
+
+    /**
+     * 区间结束. 必须和 {@link #begin} 在同一线程
+     */
+    public void end(String type, Object key, int num) { local.get().add(END, type, key, num, System.nanoTime()); }
+
+
+    /**
+     * 瞬时事件
+     */
+    public void instant(String type, Object key, int num) { local.get().add(INSTANT, type, key, num, System.nanoTime()); }
+
+
+    /**
+     * 清空已记录的事件
+     */
+    public void clear() { for (Ring r : rings) r.clear(); }
+
+
+    /**
+     * 导出 Chrome trace-event JSON 到文件
+     */
+    public void export(Path file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            export(w);
+        }
+    }
+
+
+    /**
+     * 导出 Chrome trace-event JSON
+     * 最好在没有任务执行时导出, 否则正在写的缓冲可能丢失部分事件
+     */
+    public void export(Writer w) throws IOException {
+        w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        final Set<Long> named = new HashSet<>();
+        for (Ring r : rings) {
+            long end = r.cursor, start = Math.max(r.from, end - r.ts.length);
+            final Segment[] segs = r.segments.toArray(new Segment[0]);
+            for (int s = 0; s < segs.length; s++) {
+                final boolean last = s == segs.length - 1;
+                long from = Math.max(start, segs[s].start), to = last ? end : Math.min(end, segs[s + 1].start);
+                if (from >= to && !last) continue; // 之前线程的事件已被覆盖
+                if (named.add(segs[s].tid)) {
+                    if (!first) w.write(',');
+                    first = false;
+                    w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + segs[s].tid + ",\"args\":{\"name\":");
+                    writeStr(w, segs[s].threadName);
+                    w.write("}}");
+                }
+                for (long i = from; i < to; i++) writeEvent(w, r, (int) (i % r.ts.length), segs[s].tid);
+            }
+        }
+        w.write("]}");
+        w.flush();
+    }
+
+
+    private void writeEvent(Writer w, Ring r, int idx, long tid) throws IOException {
+        w.write(",\n{\"name\":");
+        String type = r.type[idx];
+        Object key = r.key[idx];
+        int num = r.num[idx];
+        if (TASK.equals(type)) writeStr(w, String.valueOf(key));
+        else writeStr(w, num > 0 ? type + num : type);
+        w.write(",\"cat\":");
+        writeStr(w, type);
+        w.write(",\"ph\":\"" + r.ph[idx] + "\"");
+        if (r.ph[idx] == INSTANT) w.write(",\"s\":\"t\"");
+        long nanos = r.ts[idx] - baseNanos;
+        w.write(",\"ts\":" + (nanos / 1000) + "." + String.format("%03d", Math.abs(nanos % 1000)));
+        w.write(",\"pid\":1,\"tid\":" + tid);
+        if (key != null || num > 0) {
+            w.write(",\"args\":{");
+            if (key != null) { w.write("\"task\":"); writeStr(w, String.valueOf(key)); }
+            if (num > 0) w.write((key != null ? "," : "") + "\"step\":" + num);
+            w.write('}');
+        }
+        w.write('}');
+    }
+
+
+    @Override
+    public String toString() { return "Tracer[capacity: " + capacity + ", rings: " + rings.size() + "]"; }
+
+
+    protected static void writeStr(Writer w, String s) throws IOException {
+        w.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') { w.write('\\'); w.write(c); }
+            else if (c < 0x20) w.write(String.format("\\u%04x", (int) c));
+            else w.write(c);
+        }
+        w.write('"');
+    }
+
+
+    /**
+     * 单线程写的事件环形缓冲
+     */
+    protected static class Ring {
+        final char[]   ph;
+        final String[] type;
+        final Object[] key;
+        final int[]    num;
+        final long[]   ts;
+        /**
+         * 写入过的线程, 按开始位置顺序. 已被覆盖的在复用时移除
+         */
+        final Queue<Segment> segments = new ConcurrentLinkedQueue<>();
+        // 当前写入线程. 弱引用: 不阻止已结束线程被回收
+        private WeakReference<Thread> owner;
+        // 已写入的事件总数. 写完一个事件后才递增, 导出时只读到 cursor 之前
+        volatile long  cursor;
+        // 清空位置. 导出时从此处开始
+        volatile long  from;
+
+        Ring(Thread t, int capacity) {
+            this.ph = new char[capacity]; this.type = new String[capacity]; this.key = new Object[capacity];
+            this.num = new int[capacity]; this.ts = new long[capacity];
+            this.owner = new WeakReference<>(t);
+            segments.add(new Segment(0, t));
+        }
+
+        /**
+         * 当前写入线程已结束时, 由线程 t 接着写
+         * @return false: 当前写入线程仍存活
+         */
+        synchronized boolean reuse(Thread t) {
+            Thread o = owner.get();
+            if (o != null && o.isAlive()) return false;
+            owner = new WeakReference<>(t);
+            long c = cursor, start = Math.max(from, c - ts.length);
+            segments.add(new Segment(c, t));
+            // 移除事件已全部被覆盖(或清空)的线程: 下一个线程的开始位置不晚于最早的有效事件
+            final Iterator<Segment> it = segments.iterator();
+            it.next();
+            while (it.hasNext() && it.next().start <= start) segments.poll();
+            return true;
+        }
+
+        void add(char ph, String type, Object key, int num, long ts) {
+            long c = cursor;
+            int idx = (int) (c % this.ts.length);
+            this.ph[idx] = ph; this.type[idx] = type; this.key[idx] = key; this.num[idx] = num; this.ts[idx] = ts;
+            cursor = c + 1;
+        }
+
+        void clear() { from = cursor; }
+    }
+
+
+    /**
+     * 缓冲中某个线程写入的事件: 从 start 开始到下一个线程的 start
+     */
+    protected static class Segment {
+        final long   start;
+        final long   tid;
+        final String threadName;
+
+        Segment(long start, Thread t) { this.start = start; this.tid = t.getId(); this.threadName = t.getName(); }
+    }
+}
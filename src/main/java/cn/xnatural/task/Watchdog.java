@@ -0,0 +1,222 @@
+package cn.xnatural.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 执行线程看门狗: 定时采样 {@link TaskContext} 的执行线程
+ * 所有执行线程都阻塞超过 {@link #thresholdNanos}, 并且还有排队等待线程的函数时(饥饿/死锁. 例: 并行步骤的分支在排队, 而线程都在等分支结果)
+ * 1. 执行器为 {@link ThreadPoolExecutor}: 增加补偿线程, 最多 {@link #maxExtra} 个; 恢复(没有卡住的线程并且没有排队)连续 {@link #recoverTicks} 次采样后逐个收回
+ * 2. 输出阻塞线程的任务, 步骤序号, 线程栈
+ *
+ * 用法: {@link TaskContext#setWatchdog(long, int)}
+ */
+public class Watchdog {
+    protected static final Logger            log     = LoggerFactory.getLogger(Watchdog.class);
+    protected final        TaskContext<?>    ctx;
+    /**
+     * 阻塞多久算卡住(纳秒)
+     */
+    protected final        long              thresholdNanos;
+    /**
+     * 最多增加多少个补偿线程
+     */
+    protected final        int               maxExtra;
+    /**
+     * 正在执行的线程 -> 开始执行时间(纳秒)/嵌套层数
+     */
+    protected final        Map<Thread, Busy> busy    = new ConcurrentHashMap<>();
+    /**
+     * 当前增加了多少个补偿线程
+     */
+    protected final        AtomicInteger     extra   = new AtomicInteger();
+    /**
+     * 共增加过多少次补偿线程
+     */
+    protected final        AtomicInteger     compensated = new AtomicInteger();
+    /**
+     * 连续多少次采样都已恢复才收回一个补偿线程. 避免线程数来回增减
+     */
+    protected              int               recoverTicks = 3;
+    // 原始线程数
+    private                int               baseCore = -1, baseMax;
+    // 连续已恢复的采样次数. 只有采样线程访问
+    private                int               healthy;
+    // 上次输出报告时间
+    private                long              lastReport;
+    private                ScheduledExecutorService sampler;
+
+
+    /**
+     * @param ctx 所属容器
+     * @param thresholdMs 阻塞多久算卡住(毫秒)
+     * @param maxExtra 最多增加多少个补偿线程. 0: 只报告
+     */
+    public Watchdog(TaskContext<?> ctx, long thresholdMs, int maxExtra) {
+        if (ctx == null) throw new IllegalArgumentException("Param ctx required");
+        if (thresholdMs < 10) throw new IllegalArgumentException("Param thresholdMs must >= 10");
+        if (maxExtra < 0) throw new IllegalArgumentException("Param maxExtra must >= 0");
+        this.ctx = ctx;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        this.maxExtra = maxExtra;
+    }
+
+
+    /**
+     * 执行线程开始执行. 可嵌套(例: 执行器已关闭时在当前线程中执行), 从最外层开始计时
+     */
+    void enter() {
+        final Busy b = busy.get(Thread.currentThread());
+        if (b == null) busy.put(Thread.currentThread(), new Busy(System.nanoTime()));
+        else b.depth++;
+    }
+
+
+    /**
+     * 执行线程执行结束. 最外层结束时移除
+     */
+    void exit() {
+        final Busy b = busy.get(Thread.currentThread());
+        if (b == null) return;
+        if (b.depth > 0) b.depth--;
+        else busy.remove(Thread.currentThread());
+    }
+
+
+    /**
+     * 开始定时采样
+     */
+    public synchronized Watchdog start() {
+        if (sampler != null) return this;
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, ctx.key + "-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(5, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 2);
+        sampler.scheduleWithFixedDelay(() -> {
+            try { sample(); } catch (Exception ex) {
+                log.error(ctx.key + " -> watchdog error", ex);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+
+    /**
+     * 停止采样, 执行器恢复原始线程数
+     */
+    public synchronized void stop() {
+        if (sampler != null) { sampler.shutdownNow(); sampler = null; }
+        final ExecutorService executor = ctx.executor;
+        if (baseCore >= 0 && extra.getAndSet(0) > 0 && executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            pool.setCorePoolSize(baseCore); // 先减核心数, 最大数不能小于核心数
+            pool.setMaximumPoolSize(baseMax);
+        }
+    }
+
+
+    /**
+     * 采样一次
+     */
+    protected void sample() {
+        final long now = System.nanoTime();
+        int stuck = 0;
+        for (Busy b : busy.values()) {
+            if (now - b.since > thresholdNanos) stuck++;
+        }
+        final ExecutorService executor = ctx.executor;
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            if (pool.isShutdown()) return;
+            synchronized (this) {
+                if (baseCore < 0) { baseCore = pool.getCorePoolSize(); baseMax = pool.getMaximumPoolSize(); }
+            }
+            final boolean queued = !pool.getQueue().isEmpty();
+            healthy = stuck == 0 && !queued ? healthy + 1 : 0;
+            if (stuck > 0 && stuck >= pool.getPoolSize() && queued) { // 饥饿
+                boolean added = false;
+                if (extra.get() < maxExtra) {
+                    int size = baseCore + extra.incrementAndGet();
+                    if (size > pool.getMaximumPoolSize()) pool.setMaximumPoolSize(size);
+                    pool.setCorePoolSize(size); // 有排队时立即创建新线程
+                    compensated.incrementAndGet();
+                    added = true;
+                }
+                report(now, stuck, pool.getQueue().size(), added ? "compensate thread, pool size: " + pool.getCorePoolSize() : "max extra threads reached: " + maxExtra);
+            } else if (extra.get() > 0 && healthy >= recoverTicks) { // 已恢复: 逐个收回补偿线程(空闲时结束)
+                healthy = 0;
+                int size = baseCore + extra.decrementAndGet();
+                pool.setCorePoolSize(size);
+                if (pool.getMaximumPoolSize() > Math.max(size, baseMax)) pool.setMaximumPoolSize(Math.max(size, baseMax));
+            }
+        } else if (stuck > 0 && stuck >= busy.size()) { // 其它执行器: 只报告
+            report(now, stuck, -1, "no compensation for " + executor.getClass().getSimpleName());
+        }
+    }
+
+
+    /**
+     * 输出卡住的线程: 任务, 步骤, 线程栈
+     * 持续卡住时, 间隔 10 倍 {@link #thresholdNanos} 输出一次
+     */
+    protected void report(long now, int stuck, int queued, String action) {
+        synchronized (this) {
+            if (lastReport != 0 && now - lastReport < thresholdNanos * 10) return;
+            lastReport = now;
+        }
+        // 线程 -> 正在执行的任务
+        final Map<Thread, TaskWrapper> runners = new HashMap<>();
+        for (TaskWrapper task : ctx.executingTasks) {
+            Thread t = task.runner();
+            if (t != null) runners.put(t, task);
+        }
+        final StringBuilder sb = new StringBuilder(ctx.key).append(" -> watchdog: ").append(stuck).append(" workers blocked > ")
+                .append(TimeUnit.NANOSECONDS.toMillis(thresholdNanos)).append("ms, queued: ").append(queued)
+                .append(", waiting: ").append(ctx.taskQueue.size()).append(". ").append(action);
+        for (Map.Entry<Thread, Busy> e : busy.entrySet()) {
+            long ms = TimeUnit.NANOSECONDS.toMillis(now - e.getValue().since);
+            if (ms < TimeUnit.NANOSECONDS.toMillis(thresholdNanos)) continue;
+            Thread t = e.getKey();
+            sb.append("\n  \"").append(t.getName()).append("\" blocked ").append(ms).append("ms");
+            TaskWrapper task = runners.get(t);
+            if (task != null) {
+                Step step = task.current;
+                sb.append(", task: ").append(task.key).append(", step").append(step == null ? "?" : step.num);
+            }
+            for (StackTraceElement el : t.getStackTrace()) sb.append("\n\tat ").append(el);
+        }
+        log.warn(sb.toString());
+    }
+
+
+    /**
+     * 共增加过多少次补偿线程
+     */
+    public int getCompensated() { return compensated.get(); }
+
+
+    @Override
+    public String toString() {
+        return "Watchdog[threshold: " + TimeUnit.NANOSECONDS.toMillis(thresholdNanos) + "ms, busy: " + busy.size() + ", extra: " + extra.get() + "/" + maxExtra + "]";
+    }
+
+
+    /**
+     * 正在执行的线程状态
+     */
+    protected static class Busy {
+        // 开始执行时间(纳秒)
+        final long since;
+        // 嵌套层数. 只有所属线程访问
+        int        depth;
+
+        Busy(long since) { this.since = since; }
+    }
+}
@@ -0,0 +1,330 @@
+import cn.xnatural.task.LaneExecutor;
+import cn.xnatural.task.Step;
+import cn.xnatural.task.TaskContext;
+import cn.xnatural.task.TaskWrapper;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 调度器压力测试: 生成合成负载, 统计吞吐/延迟百分位/堆峰值, 并检查不变式
+ * 1. 正在执行的任务数不超过 parallelLimit
+ * 2. 每个任务只被计数一次(successCnt/failureCnt)
+ * 3. 容器总能结束
+ *
+ * 负载: 衍生任务多层扇出, 条件步骤由其它任务恢复, 重试/失败混合, 并发 suspend/resume/stop
+ * 独立运行: java [-Dlanes=true] LoadSimulation [seeds] [fanOut] [depth] [parallelLimit] [threads] [rounds]
+ */
+public class LoadSimulation {
+
+    final static Logger log = LoggerFactory.getLogger("ROOT");
+
+
+    /**
+     * 负载配置
+     */
+    static class Config {
+        // 初始任务数
+        int     seeds         = 200;
+        // 每个任务衍生多少个子任务
+        int     fanOut        = 2;
+        // 衍生深度
+        int     depth         = 3;
+        int     parallelLimit = 8;
+        int     threads       = 4;
+        // 失败比例
+        double  failRate      = 0.05;
+        // 带重试步骤的比例
+        double  retryRate     = 0.2;
+        // 每多少个初始任务插入一对条件任务(等待方/恢复方)
+        int     conditionEvery = 10;
+        // 并发 suspend/resume
+        boolean chaos         = true;
+        // 运行中途 stop
+        boolean stopMidway    = false;
+        // 使用 LaneExecutor, 任务按 key 分组亲和
+        boolean lanes         = false;
+        // 结束等待超时
+        long    timeoutMs     = 1000 * 60;
+
+        @Override
+        public String toString() {
+            return "seeds: " + seeds + ", fanOut: " + fanOut + ", depth: " + depth + ", parallelLimit: " + parallelLimit + ", threads: " + threads +
+                    ", failRate: " + failRate + ", retryRate: " + retryRate + ", chaos: " + chaos + ", stopMidway: " + stopMidway + ", lanes: " + lanes;
+        }
+    }
+
+
+    /**
+     * 运行结果
+     */
+    static class Report {
+        boolean      terminated;
+        long         created, removed, success, failure, spendMs, peakHeap;
+        int          maxInFlight;
+        long[]       latency; // p50, p95, p99 (微秒)
+        List<String> violations = new ArrayList<>();
+
+        boolean ok() { return violations.isEmpty(); }
+
+        @Override
+        public String toString() {
+            return "terminated: " + terminated + ", created: " + created + ", removed: " + removed + ", success: " + success + ", failure: " + failure +
+                    ", spend: " + spendMs + "ms, throughput: " + (spendMs == 0 ? removed : removed * 1000 / spendMs) + "/s, maxInFlight: " + maxInFlight +
+                    ", latency(p50/p95/p99 us): " + Arrays.toString(latency) + ", peakHeap: " + (peakHeap / 1024 / 1024) + "MB, violations: " + violations;
+        }
+    }
+
+
+    /**
+     * 记录每个任务被移除次数的容器
+     */
+    static class ProbeContext extends TaskContext<TaskWrapper> {
+        final Map<Object, AtomicInteger> removed = new ConcurrentHashMap<>();
+        final Map<Object, Long>          created = new ConcurrentHashMap<>();
+        final Queue<Long>                latencies = new ConcurrentLinkedQueue<>();
+        final AtomicInteger              inFlight = new AtomicInteger();
+        final CountDownLatch             stopped = new CountDownLatch(1);
+
+        ProbeContext(String key, int threads, boolean lanes) { super(key, lanes ? new LaneExecutor(threads, key) : Executors.newFixedThreadPool(threads)); }
+
+        @Override
+        protected void postRemoveTask(TaskWrapper task) {
+            removed.computeIfAbsent(task.getKey(), k -> new AtomicInteger()).incrementAndGet();
+            Long start = created.get(task.getKey());
+            if (start != null) latencies.add((System.nanoTime() - start) / 1000);
+            if (task.getStartTime() != null) inFlight.decrementAndGet();
+        }
+
+        @Override
+        protected void doStop(TaskContext<TaskWrapper> ctx) {
+            super.doStop(ctx);
+            stopped.countDown();
+        }
+
+        long success() { return successCnt.sum(); }
+        long failure() { return failureCnt.sum(); }
+    }
+
+
+    static Report run(Config cfg) throws Exception {
+        final ProbeContext ctx = new ProbeContext("load", cfg.threads, cfg.lanes);
+        ctx.setParallelLimit(cfg.parallelLimit);
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicLong seq = new AtomicLong();
+        final Report report = new Report();
+
+        // 任务工厂
+        class Factory {
+            TaskWrapper create(int level) {
+                final String key = "t" + seq.incrementAndGet() + "-L" + level;
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final boolean fail = random.nextDouble() < cfg.failRate;
+                final boolean retry = random.nextDouble() < cfg.retryRate;
+                TaskWrapper task = new TaskWrapper(key).step((param, step) -> {
+                    int n = ctx.inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(n, Math::max);
+                    busy(ThreadLocalRandom.current().nextInt(200));
+                    if (level < cfg.depth) { // 衍生任务
+                        for (int i = 0; i < cfg.fanOut; i++) step.ctx().addTask(create(level + 1));
+                    }
+                    return key;
+                });
+                if (retry) {
+                    task.reStep(3, (param, step) -> ThreadLocalRandom.current().nextBoolean() ? null : param, (r, step) -> r == null);
+                }
+                task.step((param, step) -> {
+                    if (fail) throw new RuntimeException("simulated failure: " + key);
+                    return param;
+                });
+                if (cfg.lanes) task.affinity("group" + (key.hashCode() % 16));
+                ctx.created.put(key, System.nanoTime());
+                return task;
+            }
+
+            // 条件任务对: 等待方暂停直到恢复方设置属性并恢复它
+            void conditionPair(int i) {
+                final String gate = "gate" + i;
+                TaskWrapper waiter = new TaskWrapper("waiter" + i).step((param, step) -> {
+                    int n = ctx.inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(n, Math::max);
+                    return null;
+                }).step((param, step) -> gate, step -> step.ctx().getAttr(gate) != null);
+                TaskWrapper releaser = new TaskWrapper("releaser" + i).step((param, step) -> {
+                    int n = ctx.inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(n, Math::max);
+                    step.ctx().setAttr(gate, true);
+                    step.ctx().resumeTask("waiter" + i);
+                    return null;
+                });
+                ctx.created.put(waiter.getKey(), System.nanoTime());
+                ctx.created.put(releaser.getKey(), System.nanoTime());
+                ctx.addTask(waiter).addTask(releaser);
+            }
+        }
+        final Factory factory = new Factory();
+        for (int i = 0; i < cfg.seeds; i++) {
+            ctx.addTask(factory.create(1));
+            if (cfg.conditionEvery > 0 && i % cfg.conditionEvery == 0) factory.conditionPair(i);
+        }
+
+        // 堆峰值采样
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final AtomicLong peakHeap = new AtomicLong();
+        final ScheduledExecutorService sampler = Executors.newScheduledThreadPool(2);
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, 10, TimeUnit.MILLISECONDS);
+        // 并发暂停/恢复
+        final Future<?> chaos = !cfg.chaos ? null : sampler.submit(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!ctx.isEnd() && !Thread.currentThread().isInterrupted()) {
+                if (random.nextBoolean()) ctx.suspend(); else ctx.resume();
+                try { Thread.sleep(random.nextInt(5)); } catch (InterruptedException e) { break; }
+            }
+            ctx.resume();
+        });
+
+        long start = System.currentTimeMillis();
+        ctx.start();
+        if (cfg.stopMidway) {
+            Thread.sleep(50);
+            if (chaos != null) chaos.cancel(true);
+            ctx.stop(1000); // 条件步骤的恢复任务不再分发: 超时取消
+        }
+        report.terminated = ctx.stopped.await(cfg.timeoutMs, TimeUnit.MILLISECONDS);
+        report.spendMs = System.currentTimeMillis() - start;
+        if (chaos != null) chaos.cancel(true);
+        sampler.shutdownNow();
+
+        // 不变式检查
+        report.created = seq.get() + (cfg.conditionEvery > 0 ? 2L * ((cfg.seeds - 1) / cfg.conditionEvery + 1) : 0);
+        report.removed = ctx.removed.size();
+        report.success = ctx.success();
+        report.failure = ctx.failure();
+        report.maxInFlight = maxInFlight.get();
+        report.peakHeap = peakHeap.get();
+        if (!report.terminated) report.violations.add("not terminated: " + ctx);
+        if (report.maxInFlight > cfg.parallelLimit) report.violations.add("executing " + report.maxInFlight + " > parallelLimit " + cfg.parallelLimit);
+        ctx.removed.forEach((k, cnt) -> { if (cnt.get() != 1) report.violations.add("task " + k + " removed " + cnt.get() + " times"); });
+        if (report.success + report.failure != report.removed) report.violations.add("successCnt + failureCnt = " + (report.success + report.failure) + " != removed " + report.removed);
+        if (!cfg.stopMidway && report.terminated && report.removed != report.created) report.violations.add("removed " + report.removed + " != created " + report.created);
+        long[] lat = ctx.latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        report.latency = lat.length == 0 ? new long[3] : new long[]{lat[(int) (lat.length * 0.5)], lat[(int) (lat.length * 0.95)], lat[(int) (lat.length * 0.99)]};
+        if (!report.terminated) ctx.stopNow();
+        return report;
+    }
+
+
+    /**
+     * 模拟CPU计算
+     */
+    static long busy(int n) {
+        long x = n;
+        for (int i = 0; i < n * 100; i++) x = x * 31 + i;
+        return x;
+    }
+
+
+    @Test
+    void loadTest() throws Exception {
+        Config cfg = new Config();
+        for (int i = 0; i < 3; i++) {
+            Report report = run(cfg);
+            log.info("round {} -> {}", i, report);
+            assertTrue(report.ok(), report.toString());
+        }
+    }
+
+
+    @Test
+    void laneLoadTest() throws Exception {
+        Config cfg = new Config();
+        cfg.lanes = true;
+        Report report = run(cfg);
+        log.info("{}", report);
+        assertTrue(report.ok(), report.toString());
+    }
+
+
+    @Test
+    void stopUnderLoad() throws Exception {
+        Config cfg = new Config();
+        cfg.stopMidway = true;
+        Report report = run(cfg);
+        log.info("{}", report);
+        assertTrue(report.ok(), report.toString());
+    }
+
+
+    /**
+     * 紧凑模式的内存: tasks 个任务暂停在第三步, 第一步产生 pageKb 的结果, 第二步只使用它的长度
+     * @return GC后任务占用的堆(字节)
+     */
+    static long retainedHeap(boolean compact, int tasks, int pageKb) throws Exception {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        TaskContext<TaskWrapper> ctx = new TaskContext<>("compact-" + compact).setParallelLimit(tasks);
+        final AtomicInteger used = new AtomicInteger();
+        for (int i = 0; i < tasks; i++) {
+            TaskWrapper task = new TaskWrapper("task" + i)
+                    .step((param, me) -> new byte[1024 * pageKb])
+                    .step((byte[] page, Step me) -> { used.incrementAndGet(); return page.length; })
+                    .step((size, me) -> size, me -> false); // 一直暂停
+            ctx.addTask(compact ? task.compact() : task);
+        }
+        final long base = usedAfterGc(memory);
+        ctx.start();
+        for (int i = 0; i < 100 && used.get() < tasks; i++) Thread.sleep(50);
+        Thread.sleep(100);
+        final long retained = usedAfterGc(memory) - base;
+        ctx.stopNow();
+        return retained;
+    }
+
+
+    static long usedAfterGc(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) { System.gc(); Thread.sleep(50); }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+
+    @Test
+    void compactHeap() throws Exception {
+        long normal = retainedHeap(false, 500, 256), compact = retainedHeap(true, 500, 256);
+        log.info("500 tasks paused after a 256KB step -> retained heap: {}MB, compact: {}MB", normal / 1024 / 1024, compact / 1024 / 1024);
+        assertTrue(normal > 100L * 1024 * 1024, "normal: " + normal);
+        assertTrue(compact < 10L * 1024 * 1024, "compact: " + compact);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Config cfg = new Config();
+        if (args.length > 0) cfg.seeds = Integer.parseInt(args[0]);
+        if (args.length > 1) cfg.fanOut = Integer.parseInt(args[1]);
+        if (args.length > 2) cfg.depth = Integer.parseInt(args[2]);
+        if (args.length > 3) cfg.parallelLimit = Integer.parseInt(args[3]);
+        if (args.length > 4) cfg.threads = Integer.parseInt(args[4]);
+        cfg.lanes = Boolean.getBoolean("lanes");
+        int rounds = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+        log.info("config -> {}", cfg);
+        int failed = 0;
+        for (int i = 0; i < rounds; i++) {
+            Report report = run(cfg);
+            log.info("round {} -> {}", i, report);
+            if (!report.ok()) failed++;
+        }
+        log.info("finished. failed rounds: {}/{}", failed, rounds);
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
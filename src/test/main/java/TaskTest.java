@@ -1,12 +1,45 @@
+import cn.xnatural.task.CircuitBreaker;
+import cn.xnatural.task.FileTaskQueue;
+import cn.xnatural.task.LaneExecutor;
+import cn.xnatural.task.LatencyRecorder;
+import cn.xnatural.task.ResultIterator;
+import cn.xnatural.task.ResultSink;
+import cn.xnatural.task.Schedule;
+import cn.xnatural.task.Step;
 import cn.xnatural.task.TaskContext;
+import cn.xnatural.task.TaskResult;
 import cn.xnatural.task.TaskWrapper;
+import cn.xnatural.task.TimingWheel;
+import cn.xnatural.task.Tracer;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.io.StringWriter;
 import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class TaskTest {
 
@@ -75,6 +108,619 @@ public class TaskTest {
     }
 
 
+    @Test
+    void testParallelFailFast() {
+        long start = System.currentTimeMillis();
+        TaskWrapper task = new TaskWrapper("failFast").executor(Executors.newFixedThreadPool(2)).parallel(
+                (input, step) -> {
+                    try {
+                        Thread.sleep(1000 * 10);
+                    } catch (InterruptedException e) {
+                        step.info("p1 cancelled: {}", step.isCancelled());
+                    }
+                    return "p1";
+                },
+                (input, step) -> { throw new RuntimeException("p2 fail"); }
+        );
+        task.run();
+        assertEquals("FailStopped", task.getStatus());
+        assertTrue(System.currentTimeMillis() - start < 1000 * 5);
+    }
+
+
+    @Test
+    void testAnyOfQuorum() {
+        Object r = new TaskWrapper("anyOf").executor(Executors.newFixedThreadPool(3)).anyOf(
+                (input, step) -> {
+                    try {
+                        Thread.sleep(1000 * 10);
+                    } catch (InterruptedException e) {
+                        step.info("slow mirror cancelled");
+                    }
+                    return "slow";
+                },
+                (input, step) -> { throw new RuntimeException("broken mirror"); },
+                (input, step) -> "fast"
+        ).run();
+        assertEquals("fast", r);
+
+        r = new TaskWrapper("quorum").executor(Executors.newFixedThreadPool(3)).quorum(2,
+                (input, step) -> "r1",
+                (input, step) -> "r2",
+                (input, step) -> { throw new RuntimeException("r3 fail"); }
+        ).run();
+        assertEquals(2, ((List) r).size());
+    }
+
+
+    @Test
+    void testHedge() {
+        AtomicInteger times = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        Object r = new TaskWrapper("hedge").executor(Executors.newFixedThreadPool(2)).hedge(200, (input, step) -> {
+            if (times.incrementAndGet() == 1) { // 第一次执行很慢
+                try {
+                    Thread.sleep(1000 * 10);
+                } catch (InterruptedException e) {
+                    step.info("slow replica cancelled");
+                }
+                return "slow";
+            }
+            return "hedged";
+        }).run();
+        assertEquals("hedged", r);
+        assertEquals(2, times.get());
+        assertTrue(System.currentTimeMillis() - start < 1000 * 5);
+
+        // 原始执行输给对冲: 记录原始执行到被取消时的耗时, 而不是对冲分支的耗时
+        LatencyRecorder latency = new LatencyRecorder(10, 0.95, 100);
+        AtomicInteger times2 = new AtomicInteger();
+        new TaskWrapper("hedge2").executor(Executors.newFixedThreadPool(2)).hedge(latency, (input, step) -> {
+            if (times2.incrementAndGet() == 1) {
+                try { Thread.sleep(1000 * 10); } catch (InterruptedException e) { }
+                return "slow";
+            }
+            return "hedged";
+        }).run();
+        assertEquals(1, latency.count());
+        assertTrue(latency.percentile(1) >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+
+    @Test
+    void testStopNow() throws Exception {
+        TaskContext<TaskWrapper> ctx = new TaskContext<>().setParallelLimit(1);
+        for (int i = 0; i < 5; i++) {
+            ctx.addTask(new TaskWrapper("task" + i).step((param, step) -> {
+                while (!step.isCancelled()) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        step.info("interrupted");
+                    }
+                }
+                return null;
+            }));
+        }
+        ctx.start();
+        Thread.sleep(500);
+        List<TaskWrapper> drained = ctx.stopNow();
+        assertEquals(4, drained.size());
+        Thread.sleep(500);
+        assertTrue(ctx.isEnd());
+    }
+
+
+    @Test
+    void testFileTaskQueue() throws Exception {
+        Path dir = Files.createTempDirectory("task-queue");
+        Map<Object, String> done = new ConcurrentHashMap<>();
+        // 模拟两个进程共享同一个目录
+        TaskContext<TaskWrapper>[] ctxs = new TaskContext[2];
+        for (int i = 0; i < ctxs.length; i++) {
+            ctxs[i] = new TaskContext<>("worker" + i).setTaskQueue(new FileTaskQueue<>(dir, t -> t.getKey().toString(), key -> new TaskWrapper(key).step((param, step) -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                done.put(step.task().getKey(), Thread.currentThread().getName());
+                return null;
+            }), 1000));
+        }
+        for (int i = 0; i < 20; i++) ctxs[0].addTask(new TaskWrapper("seed" + i));
+        for (TaskContext<TaskWrapper> ctx : ctxs) ctx.start();
+        for (int i = 0; i < 100 && !(ctxs[0].isEnd() && ctxs[1].isEnd()); i++) Thread.sleep(100);
+        assertTrue(ctxs[0].isSuccessEnd() && ctxs[1].isSuccessEnd());
+        assertEquals(20, done.size());
+
+        // 领取后未确认(进程退出)的任务, 租约过期后重新投递
+        FileTaskQueue<TaskWrapper> dead = new FileTaskQueue<>(dir, t -> t.getKey().toString(), TaskWrapper::new, 200);
+        dead.offer(new TaskWrapper("orphan"));
+        assertNotNull(dead.poll());
+        TaskContext<TaskWrapper> ctx = new TaskContext<>("worker2").setTaskQueue(new FileTaskQueue<>(dir, t -> t.getKey().toString(), key -> new TaskWrapper(key).step((param, step) -> done.put(step.task().getKey(), "redelivered")), 200));
+        ctx.start();
+        for (int i = 0; i < 50 && !ctx.isEnd(); i++) Thread.sleep(100);
+        assertEquals("redelivered", done.get("orphan"));
+
+        // 立即停止: 只返回当前进程已领取的任务, 其它进程的任务仍在共享目录中
+        Path shared = Files.createTempDirectory("task-queue");
+        FileTaskQueue<TaskWrapper> producer = new FileTaskQueue<>(shared, t -> t.getKey().toString(), TaskWrapper::new);
+        for (int i = 0; i < 50; i++) producer.offer(new TaskWrapper("shared" + i));
+        TaskContext<TaskWrapper> stopping = new TaskContext<>("worker3").setParallelLimit(1).setTaskQueue(new FileTaskQueue<TaskWrapper>(shared, t -> t.getKey().toString(), key -> new TaskWrapper(key).step((param, step) -> {
+            try { Thread.sleep(1000); } catch (InterruptedException e) { }
+            return null;
+        })).setBatch(4));
+        stopping.start();
+        Thread.sleep(100);
+        List<TaskWrapper> drained = stopping.stopNow();
+        assertEquals(3, drained.size());
+        for (int i = 0; i < 50 && !stopping.isEnd(); i++) Thread.sleep(100);
+        Thread.sleep(200); // 结束后关闭对列
+        try (Stream<Path> files = Files.list(shared.resolve("ready"))) {
+            assertEquals(50, files.count()); // 已领取未执行的 和 被取消未执行完的都归还
+        }
+
+        // 其它进程结束任务后很快被发现(不等租约刷新周期)
+        Path other = Files.createTempDirectory("task-queue");
+        FileTaskQueue<TaskWrapper> remote = new FileTaskQueue<>(other, t -> t.getKey().toString(), TaskWrapper::new);
+        remote.offer(new TaskWrapper("remote"));
+        TaskWrapper leased = remote.poll();
+        TaskContext<TaskWrapper> watching = new TaskContext<>("worker4").setTaskQueue(new FileTaskQueue<>(other, t -> t.getKey().toString(), TaskWrapper::new));
+        watching.start();
+        Thread.sleep(300);
+        assertFalse(watching.isEnd()); // 其它进程持有租约
+        remote.ack(leased);
+        for (int i = 0; i < 20 && !watching.isEnd(); i++) Thread.sleep(50);
+        assertTrue(watching.isEnd());
+    }
+
+
+    @Test
+    void testTracer() throws Exception {
+        Tracer tracer = new Tracer();
+        TaskContext<TaskWrapper> ctx = new TaskContext<>("traced").setParallelLimit(2).setTracer(tracer);
+        for (int i = 0; i < 5; i++) {
+            ctx.addTask(new TaskWrapper("task" + i).step((param, step) -> "s1").parallel(
+                    (input, step) -> input + " p1",
+                    (input, step) -> input + " p2"
+            ));
+        }
+        ctx.start();
+        for (int i = 0; i < 50 && !ctx.isEnd(); i++) Thread.sleep(100);
+        StringWriter w = new StringWriter();
+        tracer.export(w);
+        String json = w.toString();
+        log.info(json);
+        assertTrue(json.startsWith("{") && json.endsWith("]}"));
+        assertTrue(json.contains("\"cat\":\"enqueue\"") && json.contains("\"cat\":\"branch\"") && json.contains("\"name\":\"task4\""));
+
+        // 线程不断新建/结束: 复用已结束线程的缓冲, 事件保留
+        Tracer churn = new Tracer(16);
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            Thread t = new Thread(() -> churn.instant("tick", "t" + n, -1), "churn" + i);
+            t.start(); t.join();
+        }
+        assertTrue(churn.toString().contains("rings: 1"), churn.toString());
+        w = new StringWriter();
+        churn.export(w);
+        json = w.toString();
+        assertTrue(json.contains("\"name\":\"churn4\"") && json.contains("\"task\":\"t4\"") && json.contains("\"task\":\"t19\""), json);
+        assertFalse(json.contains("\"name\":\"churn3\""), json); // 已被覆盖
+    }
+
+
+    @Test
+    void testResultSink() throws Exception {
+        TaskContext<TaskWrapper> ctx = new TaskContext<>().setParallelLimit(3);
+        for (int i = 0; i < 10; i++) {
+            final int n = i;
+            ctx.addTask(new TaskWrapper("task" + i).step((param, step) -> {
+                if (n == 5) throw new RuntimeException("fail" + n);
+                return n;
+            }));
+        }
+        ResultIterator<TaskWrapper> it = ctx.results(2);
+        ctx.start();
+        int ok = 0, fail = 0;
+        while (it.hasNext()) {
+            TaskResult<TaskWrapper> r = it.next();
+            Thread.sleep(50); // 慢消费: 任务执行受限于消费速度
+            if (r.isSuccess()) { ok++; assertEquals(r.getKey(), "task" + r.getResult()); }
+            else { fail++; assertEquals("fail5", r.getError().getMessage()); }
+        }
+        assertEquals(9, ok);
+        assertEquals(1, fail);
+        assertTrue(ctx.isEnd());
+
+        // 不消费时对列已满: 容器结束不阻塞, 之后仍能取完结果
+        final CountDownLatch stopped = new CountDownLatch(1);
+        TaskContext<TaskWrapper> ctx1 = new TaskContext<TaskWrapper>() {
+            @Override
+            protected void doStop(TaskContext<TaskWrapper> ctx) {
+                super.doStop(ctx);
+                stopped.countDown();
+            }
+        };
+        for (int i = 0; i < 2; i++) ctx1.addTask(new TaskWrapper("full" + i).step((param, step) -> 1));
+        ResultIterator<TaskWrapper> it1 = ctx1.results(2);
+        ctx1.start();
+        assertTrue(stopped.await(1, TimeUnit.SECONDS));
+        int cnt = 0;
+        while (it1.hasNext()) { it1.next(); cnt++; }
+        assertEquals(2, cnt);
+
+        // 消费线程在对列已满时立即停止: 取消的任务结果不阻塞消费线程
+        TaskContext<TaskWrapper> ctx3 = new TaskContext<>().setParallelLimit(3);
+        ctx3.addTask(new TaskWrapper("done").step((param, step) -> 1));
+        for (int i = 0; i < 2; i++) ctx3.addTask(new TaskWrapper("paused" + i).step((param, step) -> 1, step -> false));
+        ResultIterator<TaskWrapper> it3 = ctx3.results(1);
+        ctx3.start();
+        Thread.sleep(300);
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> {
+            ctx3.stopNow();
+            int cnt3 = 0;
+            while (it3.hasNext()) { it3.next(); cnt3++; }
+            assertEquals(3, cnt3);
+        });
+        assertTrue(ctx3.isEnd());
+
+        // 批量输出
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        TaskContext<TaskWrapper> ctx2 = new TaskContext<>();
+        for (int i = 0; i < 10; i++) ctx2.addTask(new TaskWrapper().step((param, step) -> 1));
+        ctx2.setResultSink(ResultSink.batch(4, batch -> sizes.add(batch.size()))).start();
+        Thread.sleep(1000);
+        assertEquals(10, sizes.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(4, sizes.get(0).intValue());
+    }
+
+
+    @Test
+    void testSchedule() throws Exception {
+        TaskContext<TaskWrapper> ctx = new TaskContext<>();
+        final long start = System.currentTimeMillis();
+        final AtomicLong delayedAt = new AtomicLong();
+        ctx.addTask(new TaskWrapper("delayed").step((param, step) -> {
+            delayedAt.set(System.currentTimeMillis() - start);
+            return null;
+        }), 300, TimeUnit.MILLISECONDS);
+        // 固定频率: 5次后取消
+        final AtomicInteger rateCnt = new AtomicInteger();
+        final AtomicReference<Schedule<TaskWrapper>> rate = new AtomicReference<>();
+        rate.set(ctx.scheduleAtFixedRate(() -> {
+            if (rateCnt.incrementAndGet() >= 5) rate.get().cancel();
+            return new TaskWrapper().step((param, step) -> null);
+        }, 0, 50, TimeUnit.MILLISECONDS));
+        // 固定延迟: 上一个任务结束后才计时
+        final List<Long> ends = new CopyOnWriteArrayList<>();
+        final AtomicReference<Schedule<TaskWrapper>> delay = new AtomicReference<>();
+        delay.set(ctx.scheduleWithFixedDelay(() -> new TaskWrapper().step((param, step) -> {
+            try { Thread.sleep(100); } catch (InterruptedException e) { throw new RuntimeException(e); }
+            ends.add(System.currentTimeMillis());
+            if (ends.size() >= 3) delay.get().cancel();
+            return null;
+        }), 0, 100, TimeUnit.MILLISECONDS));
+        ctx.start();
+        Thread.sleep(1500);
+        assertTrue(ctx.isEnd());
+        assertTrue(delayedAt.get() >= 300, "delayed at " + delayedAt.get());
+        assertEquals(5, rate.get().getCount());
+        assertEquals(3, delay.get().getCount());
+        assertTrue(ends.get(1) - ends.get(0) >= 200 && ends.get(2) - ends.get(1) >= 200, ends.toString());
+        assertTrue(ctx.isSuccessEnd());
+
+        // 超大延迟不溢出成立即到期
+        TimingWheel wheel = new TimingWheel("wheel");
+        final AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timeout never = wheel.schedule(fired::incrementAndGet, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        wheel.schedule(fired::incrementAndGet, Long.MAX_VALUE - 1, TimeUnit.NANOSECONDS);
+        Thread.sleep(100);
+        assertEquals(0, fired.get());
+        assertEquals(2, wheel.size());
+        assertTrue(never.cancel());
+        wheel.stop();
+
+        // 共享对列不支持固定延迟
+        TaskContext<TaskWrapper> shared = new TaskContext<TaskWrapper>().setTaskQueue(new FileTaskQueue<>(Files.createTempDirectory("schedule"), t -> t.getKey().toString(), TaskWrapper::new));
+        assertThrows(RuntimeException.class, () -> shared.scheduleWithFixedDelay(TaskWrapper::new, 0, 100, TimeUnit.MILLISECONDS));
+        TaskContext<TaskWrapper> local = new TaskContext<>();
+        local.scheduleWithFixedDelay(TaskWrapper::new, 0, 100, TimeUnit.MILLISECONDS).cancel();
+        local.scheduleWithFixedDelay(TaskWrapper::new, 1, 100, TimeUnit.SECONDS);
+        assertThrows(RuntimeException.class, () -> local.setTaskQueue(new FileTaskQueue<>(Files.createTempDirectory("schedule"), t -> t.getKey().toString(), TaskWrapper::new)));
+        local.stopNow();
+    }
+
+
+    @Test
+    void testLaneExecutor() throws Exception {
+        // 同键按提交顺序串行
+        LaneExecutor exec = new LaneExecutor(4, "lane");
+        final Map<Object, List<Integer>> seqs = new ConcurrentHashMap<>();
+        final Map<Object, AtomicInteger> running = new ConcurrentHashMap<>();
+        final AtomicInteger overlap = new AtomicInteger();
+        for (int i = 0; i < 2000; i++) {
+            final int n = i;
+            final String host = "host" + (i % 5);
+            exec.execute(host, () -> {
+                if (running.computeIfAbsent(host, k -> new AtomicInteger()).incrementAndGet() > 1) overlap.incrementAndGet();
+                seqs.computeIfAbsent(host, k -> new CopyOnWriteArrayList<>()).add(n);
+                if (n % 100 == 0) { try { Thread.sleep(5); } catch (InterruptedException e) { } }
+                running.get(host).decrementAndGet();
+            });
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, overlap.get());
+        seqs.forEach((host, ls) -> {
+            assertEquals(400, ls.size());
+            for (int i = 1; i < ls.size(); i++) assertTrue(ls.get(i - 1) < ls.get(i), host + ": " + ls);
+        });
+
+        // 容器中按域名亲和: 同键按添加顺序串行, 一个键很忙时不占满执行名额, 其它键照常执行
+        TaskContext<TaskWrapper> ctx = new TaskContext<>("lanes", new LaneExecutor(3, "lanes")).setParallelLimit(3);
+        final List<String> finished = new CopyOnWriteArrayList<>();
+        final Map<Object, List<Integer>> order = new ConcurrentHashMap<>();
+        final Map<Object, AtomicInteger> active = new ConcurrentHashMap<>();
+        final AtomicInteger keyOverlap = new AtomicInteger();
+        for (int i = 0; i < 30; i++) {
+            final int n = i;
+            final String host = i < 20 ? "busy" : "host" + (i % 3);
+            ctx.addTask(new TaskWrapper("task" + i).affinity(host).step((param, step) -> {
+                if (active.computeIfAbsent(host, k -> new AtomicInteger()).incrementAndGet() > 1) keyOverlap.incrementAndGet();
+                order.computeIfAbsent(host, k -> new CopyOnWriteArrayList<>()).add(n);
+                try { Thread.sleep(20); } catch (InterruptedException e) { }
+                active.get(host).decrementAndGet();
+                finished.add(host);
+                return null;
+            }));
+        }
+        ctx.start();
+        for (int i = 0; i < 50 && !ctx.isEnd(); i++) Thread.sleep(100);
+        assertTrue(ctx.isSuccessEnd());
+        assertEquals(0, keyOverlap.get());
+        order.forEach((host, ls) -> {
+            for (int i = 1; i < ls.size(); i++) assertTrue(ls.get(i - 1) < ls.get(i), host + ": " + ls);
+        });
+        // 其它键的任务在忙键执行完一半之前都已完成
+        int busyDone = 0;
+        for (String host : finished) {
+            if ("busy".equals(host)) busyDone++;
+            else assertTrue(busyDone < 10, "finished: " + finished);
+        }
+    }
+
+
+    @Test
+    void testCompact() throws Exception {
+        TaskContext<TaskWrapper> ctx = new TaskContext<>().setParallelLimit(50);
+        final List<Step> pages = new CopyOnWriteArrayList<>(), sizes = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ctx.addTask(new TaskWrapper("task" + i).compact()
+                    .step((param, me) -> { pages.add(me); return new byte[1024 * 256]; }) // 页面内容
+                    .step((byte[] page, Step me) -> { sizes.add(me); return page.length; }).retain()
+                    .step((size, me) -> size, me -> me.ctx().getAttr("go") != null)
+            );
+        }
+        ResultIterator<TaskWrapper> it = ctx.results(50);
+        ctx.start();
+        Thread.sleep(500);
+        // 暂停在第三步: 第一步结果已被使用并释放, 保留的第二步结果仍在
+        assertEquals(50, pages.size());
+        for (Step step : pages) assertNull(step.getResult());
+        for (Step step : sizes) assertEquals(1024 * 256, step.getResult());
+        ctx.setAttr("go", true);
+        for (int i = 0; i < 50; i++) ctx.resumeTask("task" + i);
+        int cnt = 0;
+        while (it.hasNext()) { assertEquals(1024 * 256, it.next().getResult()); cnt++; }
+        assertEquals(50, cnt);
+        assertTrue(ctx.isSuccessEnd());
+    }
+
+
+    @Test
+    void testSource() throws Exception {
+        TaskContext<TaskWrapper> ctx = new TaskContext<>().setParallelLimit(4);
+        final AtomicInteger created = new AtomicInteger(), done = new AtomicInteger(), maxPending = new AtomicInteger();
+        // 懒加载: 有执行名额时才创建任务
+        ctx.addSource(new Iterator<TaskWrapper>() {
+            int i = 0;
+            @Override
+            public boolean hasNext() { return i < 1000; }
+            @Override
+            public TaskWrapper next() {
+                maxPending.accumulateAndGet(created.incrementAndGet() - done.get(), Math::max);
+                return new TaskWrapper("seed" + (i++)).step((param, step) -> done.incrementAndGet());
+            }
+        });
+        // 分页
+        final AtomicInteger page = new AtomicInteger();
+        ctx.addSource(() -> {
+            int p = page.getAndIncrement();
+            if (p >= 3) return Collections.emptyList(); // 空页即结束
+            return IntStream.range(0, 10).mapToObj(i -> new TaskWrapper("page" + p + "-" + i).step((param, step) -> null)).collect(Collectors.toList());
+        });
+        ctx.start();
+        ctx.addSource(Stream.of("a", "b", "c").map(s -> new TaskWrapper(s).step((param, step) -> s)));
+        Thread.sleep(2000);
+        assertTrue(ctx.isSuccessEnd());
+        assertEquals(1000, done.get());
+        assertEquals(4, page.get());
+        assertTrue(maxPending.get() <= 5, "maxPending: " + maxPending.get());
+        log.info(ctx.toString());
+    }
+
+
+    @Test
+    void testStopPaused() throws Exception {
+        // 停止时, 等待中的任务执行条件不会再满足: stop() 一直等待, stop(graceMs) 超时取消
+        TaskContext<TaskWrapper> ctx = new TaskContext<>();
+        ctx.addTask(new TaskWrapper("waiter").step((param, step) -> null, step -> step.ctx().getAttr("go") != null));
+        ctx.addTask(new TaskWrapper("other").step((param, step) -> { try { Thread.sleep(300); } catch (InterruptedException e) { } return null; }));
+        ctx.start();
+        Thread.sleep(100);
+        ctx.stop();
+        Thread.sleep(500);
+        assertFalse(ctx.isEnd());
+        ctx.stop(200);
+        Thread.sleep(500);
+        assertTrue(ctx.isEnd());
+        assertFalse(ctx.isSuccessEnd());
+    }
+
+
+    @Test
+    void testStopExternalResume() throws Exception {
+        // 停止后, 外部设置条件并恢复暂停的任务: 正常执行完成
+        TaskContext<TaskWrapper> ctx = new TaskContext<>();
+        final AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            ctx.addTask(new TaskWrapper("waiter" + i).step((param, step) -> done.incrementAndGet(), step -> step.ctx().getAttr("go") != null));
+        }
+        ctx.start();
+        Thread.sleep(100);
+        ctx.stop();
+        new Thread(() -> {
+            try { Thread.sleep(200); } catch (InterruptedException e) { }
+            ctx.setAttr("go", true);
+            ctx.resumeTask("waiter0");
+            ctx.resumeTask("waiter1");
+        }).start();
+        Thread.sleep(800);
+        assertTrue(ctx.isSuccessEnd());
+        assertEquals(2, done.get());
+    }
+
+
+    @Test
+    void testWatchdog() throws Exception {
+        // 2个线程, 并行步骤的父任务占满线程等待分支, 分支在排队: 需要补偿线程
+        TaskContext<TaskWrapper> ctx = new TaskContext<>("watchdog", Executors.newFixedThreadPool(2)).setParallelLimit(4).setWatchdog(100, 4);
+        for (int i = 0; i < 4; i++) {
+            ctx.addTask(new TaskWrapper("task" + i).parallel(
+                    (param, step) -> { try { Thread.sleep(50); } catch (InterruptedException e) { } return 1; },
+                    (param, step) -> { try { Thread.sleep(50); } catch (InterruptedException e) { } return 2; }
+            ));
+        }
+        ctx.start();
+        Thread.sleep(3000);
+        assertTrue(ctx.isSuccessEnd());
+        assertTrue(ctx.getWatchdog().getCompensated() > 0);
+
+        // 原来的线程仍卡住时, 排队的任务由补偿线程执行完后不收回补偿线程
+        ThreadPoolExecutor pool2 = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        TaskContext<TaskWrapper> ctx2 = new TaskContext<>("watchdog2", pool2).setParallelLimit(2).setWatchdog(100, 1);
+        ctx2.addTask(new TaskWrapper("stuck").step((param, step) -> { try { Thread.sleep(1500); } catch (InterruptedException e) { } return null; }));
+        ctx2.addTask(new TaskWrapper("queued").step((param, step) -> null));
+        ctx2.start();
+        Thread.sleep(800);
+        assertTrue(ctx2.getWatchdog().toString().contains("extra: 1/"), ctx2.getWatchdog().toString());
+        Thread.sleep(1000);
+        assertTrue(ctx2.isSuccessEnd());
+        // 停止后执行器恢复原始线程数
+        Thread.sleep(200);
+        assertEquals(1, pool2.getCorePoolSize());
+        assertEquals(1, pool2.getMaximumPoolSize());
+
+        // 执行器已关闭时在当前线程中嵌套执行: 内层结束不影响外层的阻塞计时
+        ExecutorService pool3 = Executors.newFixedThreadPool(1);
+        TaskContext<TaskWrapper> ctx3 = new TaskContext<>("watchdog3", pool3).setWatchdog(50, 0);
+        ctx3.addTask(new TaskWrapper("nested").step((param, step) -> {
+            pool3.shutdown();
+            step.ctx().exec(() -> { });
+            try { Thread.sleep(500); } catch (InterruptedException e) { }
+            return null;
+        }));
+        ctx3.start();
+        Thread.sleep(250);
+        assertTrue(ctx3.getWatchdog().toString().contains("busy: 1"), ctx3.getWatchdog().toString());
+        Thread.sleep(500);
+        assertTrue(ctx3.isSuccessEnd());
+    }
+
+
+    @Test
+    void testCircuitBreaker() throws Exception {
+        // 立即失败: 下游不可用, 熔断器打开后其余任务不再调用下游
+        CircuitBreaker cb = new CircuitBreaker("down", 10, 0.5, 300).setMinCalls(4);
+        final AtomicInteger calls = new AtomicInteger();
+        TaskContext<TaskWrapper> ctx = new TaskContext<>().setParallelLimit(1);
+        for (int i = 0; i < 10; i++) {
+            ctx.addTask(new TaskWrapper("task" + i).step((param, step) -> {
+                calls.incrementAndGet();
+                throw new RuntimeException("connect refused");
+            }).breaker(cb));
+        }
+        ResultIterator<TaskWrapper> it = ctx.results(10);
+        ctx.start();
+        int shed = 0;
+        while (it.hasNext()) {
+            if (it.next().getError() instanceof CircuitBreaker.OpenException) shed++;
+        }
+        assertEquals(4, calls.get());
+        assertEquals(6, shed);
+        assertTrue(cb.isOpen());
+
+        // 暂停: 熔断期间不调用下游, 也不占用执行名额; 恢复后探测成功, 继续执行
+        CircuitBreaker cb2 = new CircuitBreaker("flaky", 10, 0.5, 200).setMinCalls(2);
+        final long upAt = System.currentTimeMillis() + 300;
+        final AtomicInteger calls2 = new AtomicInteger(), healthy = new AtomicInteger();
+        TaskContext<TaskWrapper> ctx2 = new TaskContext<>().setParallelLimit(2);
+        for (int i = 0; i < 10; i++) {
+            ctx2.addTask(new TaskWrapper("flaky" + i).step((param, step) -> {
+                calls2.incrementAndGet();
+                if (System.currentTimeMillis() < upAt) throw new RuntimeException("503");
+                return null;
+            }).breaker(cb2, true));
+        }
+        for (int i = 0; i < 10; i++) ctx2.addTask(new TaskWrapper("healthy" + i).step((param, step) -> healthy.incrementAndGet()));
+        ctx2.start();
+        Thread.sleep(200);
+        assertEquals(10, healthy.get()); // 其它任务不受影响
+        Thread.sleep(1500);
+        assertTrue(ctx2.isEnd());
+        assertEquals(CircuitBreaker.State.Closed, cb2.getState());
+        assertTrue(calls2.get() <= 14, "calls: " + calls2.get());
+        log.info("{}, calls: {}", ctx2, calls2.get());
+
+        // 熔断暂停/到期分发中被取消: 名额只释放一次, 容器能结束
+        CircuitBreaker cb3 = new CircuitBreaker("dead", 10, 0.5, 2).setMinCalls(1);
+        TaskContext<TaskWrapper> ctx3 = new TaskContext<>().setParallelLimit(4);
+        List<TaskWrapper> parked = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            TaskWrapper task = new TaskWrapper("dead" + i).step((param, step) -> { throw new RuntimeException("503"); }).breaker(cb3, true);
+            parked.add(task);
+            ctx3.addTask(task);
+        }
+        ctx3.start();
+        for (TaskWrapper task : parked) { task.cancel(); Thread.sleep(1); }
+        for (int i = 0; i < 30 && !ctx3.isEnd(); i++) Thread.sleep(100);
+        assertTrue(ctx3.isEnd(), ctx3.toString());
+
+        // 停止时熔断暂停中的任务被取消: 失败结束, 输出结果
+        CircuitBreaker cb4 = new CircuitBreaker("long", 10, 0.5, 5000).setMinCalls(1);
+        TaskContext<TaskWrapper> ctx4 = new TaskContext<>().setParallelLimit(1);
+        for (int i = 0; i < 3; i++) ctx4.addTask(new TaskWrapper("long" + i).step((param, step) -> { throw new RuntimeException("503"); }).breaker(cb4, true));
+        ResultIterator<TaskWrapper> it4 = ctx4.results(10);
+        ctx4.start();
+        Thread.sleep(200);
+        assertFalse(ctx4.isEnd()); // 2个熔断暂停中
+        ctx4.stop();
+        int cancelled4 = 0, cnt4 = 0;
+        while (it4.hasNext()) {
+            TaskResult<TaskWrapper> r = it4.next();
+            cnt4++;
+            assertFalse(r.isSuccess());
+            if (r.getTask().isCancelled()) cancelled4++;
+        }
+        assertEquals(3, cnt4);
+        assertEquals(2, cancelled4);
+        assertTrue(ctx4.isEnd());
+        assertFalse(ctx4.isSuccessEnd());
+    }
+
+
     @Test
     void testContext() throws Exception {
         new TaskContext()